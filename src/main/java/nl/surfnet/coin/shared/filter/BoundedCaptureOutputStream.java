@@ -0,0 +1,152 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.coin.shared.filter;
+
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * OutputStream that keeps a copy of at most maxSize bytes of what is written to it, and counts the rest. The copy is
+ * kept in fixed size chunks, taken from a {@link CaptureBufferPool} if one is given, so it never has to grow by
+ * copying. {@link #release()} returns the chunks to the pool.
+ */
+public class BoundedCaptureOutputStream extends OutputStream {
+
+  private static final int DEFAULT_CHUNK_SIZE = 4096;
+
+  private final CaptureBufferPool pool;
+  private final int chunkSize;
+  private final int maxSize;
+  private final List<byte[]> chunks = new ArrayList<byte[]>();
+  private int size;
+  private long totalSize;
+
+  /**
+   * @param maxSize the maximum number of bytes that is kept
+   */
+  public BoundedCaptureOutputStream(int maxSize) {
+    this(maxSize, null);
+  }
+
+  /**
+   * @param maxSize the maximum number of bytes that is kept
+   * @param pool the pool the chunks are taken from, null to allocate them
+   */
+  public BoundedCaptureOutputStream(int maxSize, CaptureBufferPool pool) {
+    this.maxSize = maxSize;
+    this.pool = pool;
+    this.chunkSize = pool == null ? DEFAULT_CHUNK_SIZE : pool.getChunkSize();
+  }
+
+  @Override
+  public void write(int b) {
+    totalSize++;
+    if (size < maxSize) {
+      chunkWithRoom()[size % chunkSize] = (byte) b;
+      size++;
+    }
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) {
+    totalSize += len;
+    int remaining = Math.min(len, maxSize - size);
+    while (remaining > 0) {
+      byte[] chunk = chunkWithRoom();
+      int offset = size % chunkSize;
+      int length = Math.min(remaining, chunkSize - offset);
+      System.arraycopy(b, off, chunk, offset, length);
+      size += length;
+      off += length;
+      remaining -= length;
+    }
+  }
+
+  private byte[] chunkWithRoom() {
+    int index = size / chunkSize;
+    if (index == chunks.size()) {
+      chunks.add(pool == null ? new byte[chunkSize] : pool.acquire());
+    }
+    return chunks.get(index);
+  }
+
+  /**
+   * @return the number of bytes that is kept
+   */
+  public int getSize() {
+    return size;
+  }
+
+  /**
+   * @return the number of bytes written, including the ones that were not kept
+   */
+  public long getTotalSize() {
+    return totalSize;
+  }
+
+  /**
+   * @return whether more bytes were written than kept
+   */
+  public boolean isTruncated() {
+    return totalSize > size;
+  }
+
+  /**
+   * @return a copy of the kept bytes
+   */
+  public byte[] toByteArray() {
+    byte[] bytes = new byte[size];
+    for (int i = 0, offset = 0; offset < size; i++, offset += chunkSize) {
+      System.arraycopy(chunks.get(i), 0, bytes, offset, Math.min(chunkSize, size - offset));
+    }
+    return bytes;
+  }
+
+  /**
+   * Return the chunks to the pool. The kept bytes are gone afterwards, the sizes are not.
+   */
+  public void release() {
+    if (pool != null) {
+      for (byte[] chunk : chunks) {
+        pool.release(chunk);
+      }
+    }
+    chunks.clear();
+    size = 0;
+  }
+
+  /**
+   * @param charset the charset the kept bytes are decoded with
+   * @return the kept bytes, without a note about the truncation
+   */
+  public String toString(Charset charset) {
+    return size <= chunkSize && size > 0 ? new String(chunks.get(0), 0, size, charset)
+            : new String(toByteArray(), charset);
+  }
+
+  /**
+   * @return the kept bytes, decoded with the platform charset, with a note about the truncation if the output was
+   * truncated
+   */
+  @Override
+  public String toString() {
+    String data = size <= chunkSize && size > 0 ? new String(chunks.get(0), 0, size) : new String(toByteArray());
+    return isTruncated() ? data + "... (truncated, " + totalSize + " bytes in total)" : data;
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.coin.shared.filter;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.util.Assert;
+
+/**
+ * Bounded pool of fixed size byte[] chunks for {@link BoundedCaptureOutputStream}, so capturing response bodies does
+ * not allocate (and grow by copying) a new buffer per request. When the pool is empty a new chunk is allocated, when
+ * it is full a released chunk is left to the garbage collector.
+ */
+public class CaptureBufferPool {
+
+  private final int chunkSize;
+  private final BlockingQueue<byte[]> chunks;
+
+  private final AtomicLong allocated = new AtomicLong();
+  private final AtomicLong reused = new AtomicLong();
+
+  /**
+   * @param chunkSize the size in bytes of a chunk
+   * @param maxPooledChunks the maximum number of chunks kept in the pool
+   */
+  public CaptureBufferPool(int chunkSize, int maxPooledChunks) {
+    Assert.isTrue(chunkSize > 0 && maxPooledChunks > 0, "Chunk size and pool size must be positive");
+    this.chunkSize = chunkSize;
+    this.chunks = new ArrayBlockingQueue<byte[]>(maxPooledChunks);
+  }
+
+  /**
+   * @return a chunk from the pool, or a new one if the pool is empty
+   */
+  public byte[] acquire() {
+    byte[] chunk = chunks.poll();
+    if (chunk == null) {
+      allocated.incrementAndGet();
+      return new byte[chunkSize];
+    }
+    reused.incrementAndGet();
+    return chunk;
+  }
+
+  /**
+   * @param chunk a chunk that is no longer used
+   */
+  public void release(byte[] chunk) {
+    if (chunk.length == chunkSize) {
+      chunks.offer(chunk);
+    }
+  }
+
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  /**
+   * @return the number of chunks that had to be allocated
+   */
+  public long getAllocated() {
+    return allocated.get();
+  }
+
+  /**
+   * @return the number of chunks that were taken from the pool
+   */
+  public long getReused() {
+    return reused.get();
+  }
+}
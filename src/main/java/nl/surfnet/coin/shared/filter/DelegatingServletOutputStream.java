@@ -21,6 +21,9 @@ import org.springframework.util.Assert;
 import javax.servlet.ServletOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * Delegating implementation of {@link javax.servlet.ServletOutputStream}.
@@ -30,13 +33,20 @@ import java.io.OutputStream;
  * <p>Used by MockHttpServletResponse; typically not directly
  * used for testing application controllers.
  *
+ * <p>Array and {@link ByteBuffer} writes are passed on to the target stream
+ * in one call, instead of byte by byte.
+ *
  * @author Juergen Hoeller
  * @since 1.0.2
  */
-public class DelegatingServletOutputStream extends ServletOutputStream {
+public class DelegatingServletOutputStream extends ServletOutputStream implements WritableByteChannel {
+
+  private static final int BUFFER_SIZE = 8192;
 
   private final OutputStream targetStream;
 
+  private boolean open = true;
+
 
   /**
    * Create a DelegatingServletOutputStream for the given target stream.
@@ -59,12 +69,50 @@ public class DelegatingServletOutputStream extends ServletOutputStream {
     this.targetStream.write(b);
   }
 
+  public void write(byte[] b) throws IOException {
+    this.targetStream.write(b, 0, b.length);
+  }
+
+  public void write(byte[] b, int off, int len) throws IOException {
+    this.targetStream.write(b, off, len);
+  }
+
+  /**
+   * Write the remaining bytes of the buffer to the target stream, in one call
+   * if the buffer is backed by an array.
+   * @return the number of bytes written
+   * @throws ClosedChannelException if the stream is closed
+   */
+  public int write(ByteBuffer src) throws IOException {
+    if (!open) {
+      throw new ClosedChannelException();
+    }
+    int length = src.remaining();
+    if (src.hasArray()) {
+      this.targetStream.write(src.array(), src.arrayOffset() + src.position(), length);
+      src.position(src.limit());
+    } else {
+      byte[] buffer = new byte[Math.min(length, BUFFER_SIZE)];
+      while (src.hasRemaining()) {
+        int chunk = Math.min(src.remaining(), buffer.length);
+        src.get(buffer, 0, chunk);
+        this.targetStream.write(buffer, 0, chunk);
+      }
+    }
+    return length;
+  }
+
+  public boolean isOpen() {
+    return open;
+  }
+
   public void flush() throws IOException {
     super.flush();
     this.targetStream.flush();
   }
 
   public void close() throws IOException {
+    open = false;
     super.close();
     this.targetStream.close();
   }
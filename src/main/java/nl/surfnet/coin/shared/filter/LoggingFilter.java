@@ -19,6 +19,9 @@ package nl.surfnet.coin.shared.filter;
 import org.apache.commons.io.output.TeeOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import org.springframework.util.ReflectionUtils;
+import org.springframework.util.StringUtils;
 
 import javax.servlet.*;
 import javax.servlet.http.HttpServletRequest;
@@ -27,14 +30,40 @@ import javax.servlet.http.HttpServletResponseWrapper;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Filter that grabs relevant request and response data and log it using the regular logger.
  * Two logging categories are defined and used, not named after the class but 'request' and 'response'.
  * At DEBUG level, the complete request URL, including query string, is logged, together with the response's status line.
- * At TRACE level, the request headers, and the complete response body are logged as well.
+ * At TRACE level, the request headers, and the response body are logged as well.
+ * The response body is only copied when the response logger is at TRACE level, up to a maximum size (init-param
+ * 'maxCaptureSize', 64 KB by default), and not for content types that start with one of the comma separated prefixes
+ * in init-param 'captureBypassContentTypes' (binary and streaming content types by default). The copy is kept in
+ * chunks of init-param 'captureChunkSize' bytes (4 KB by default) from a pool of at most 'capturePoolSize' chunks
+ * (256 by default, 0 to not pool), which are returned to the pool when the response is logged. A content type that is
+ * set after the output stream is obtained stops the copy as well.
+ * If init-param 'exposeOutputStreamCopy' is true (false by default), an immutable {@link ResponseBodyCopy} of the
+ * copied body is set as request attribute {@value #OUTPUT_STREAM_COPY_ATTR} once the filter chain has returned. It is
+ * meant for filters that run around this one: code inside the filter chain never sees the attribute, and it is absent
+ * below TRACE level and for bypassed content types. The exposed copy is a new array of up to maxCaptureSize bytes per
+ * request, so the pool only saves the allocation of the copy when it is not exposed.
+ * If init-param 'asyncLogQueueSize' is positive, the request thread only takes a snapshot of the headers and the MDC,
+ * and a background thread formats and logs them with that MDC, decoding the body with the charset of the response.
+ * Unless the copy of the body is exposed as request attribute, the chunks of the copy are handed to the background
+ * thread and returned to the pool after logging, so the body is not copied again on the request thread.
+ * Log records that do not fit in the queue are dropped and counted.
  * For correlation of request/response, a unique request ID is generated per request and is logged.
  */
 public class LoggingFilter implements Filter {
@@ -45,58 +74,225 @@ public class LoggingFilter implements Filter {
   public static final String REQUEST_ID_ATTR = "nl.surfnet.coin.shared.filter.LoggingFilter.requestId";
   public static final String OUTPUT_STREAM_COPY_ATTR = "nl.surfnet.coin.shared.filter.LoggingFilter.outputStreamCopy";
 
+  public static final int DEFAULT_MAX_CAPTURE_SIZE = 64 * 1024;
+  public static final int DEFAULT_CAPTURE_CHUNK_SIZE = 4096;
+  public static final int DEFAULT_CAPTURE_POOL_SIZE = 256;
+  public static final String DEFAULT_CAPTURE_BYPASS_CONTENT_TYPES =
+          "image/,audio/,video/,application/octet-stream,application/zip,application/pdf,multipart/,text/event-stream";
+
   private final Object lock = new Object();
 
+  /*
+   * Request ids are a per filter instance prefix plus a counter, unless a subclass provides its own (not necessarily
+   * thread safe) generateRequestId()
+   */
+  private final String requestIdPrefix = Long.toString(System.currentTimeMillis(), 36) + "-"
+          + UUID.randomUUID().toString().substring(0, 8) + "-";
+  private final AtomicLong requestIdCounter = new AtomicLong();
+  private final boolean synchronizedRequestIds = ReflectionUtils.findMethod(getClass(), "generateRequestId")
+          .getDeclaringClass() != LoggingFilter.class;
+
+  private int maxCaptureSize = DEFAULT_MAX_CAPTURE_SIZE;
+  private String[] captureBypassContentTypes =
+          StringUtils.commaDelimitedListToStringArray(DEFAULT_CAPTURE_BYPASS_CONTENT_TYPES);
+  private CaptureBufferPool capturePool = new CaptureBufferPool(DEFAULT_CAPTURE_CHUNK_SIZE, DEFAULT_CAPTURE_POOL_SIZE);
+  private boolean exposeOutputStreamCopy;
+
+  private volatile ThreadPoolExecutor asyncLogExecutor;
+  private final AtomicLong droppedLogRecords = new AtomicLong();
+
   @Override
   public void init(FilterConfig filterConfig) throws ServletException {
+    String maxCaptureSizeParam = filterConfig.getInitParameter("maxCaptureSize");
+    if (StringUtils.hasText(maxCaptureSizeParam)) {
+      setMaxCaptureSize(Integer.parseInt(maxCaptureSizeParam.trim()));
+    }
+    String bypassParam = filterConfig.getInitParameter("captureBypassContentTypes");
+    if (bypassParam != null) {
+      setCaptureBypassContentTypes(bypassParam);
+    }
+    String chunkSizeParam = filterConfig.getInitParameter("captureChunkSize");
+    String poolSizeParam = filterConfig.getInitParameter("capturePoolSize");
+    if (StringUtils.hasText(chunkSizeParam) || StringUtils.hasText(poolSizeParam)) {
+      setCapturePool(
+              StringUtils.hasText(chunkSizeParam) ? Integer.parseInt(chunkSizeParam.trim()) : DEFAULT_CAPTURE_CHUNK_SIZE,
+              StringUtils.hasText(poolSizeParam) ? Integer.parseInt(poolSizeParam.trim()) : DEFAULT_CAPTURE_POOL_SIZE);
+    }
+    String exposeParam = filterConfig.getInitParameter("exposeOutputStreamCopy");
+    if (StringUtils.hasText(exposeParam)) {
+      setExposeOutputStreamCopy(Boolean.parseBoolean(exposeParam.trim()));
+    }
+    String asyncLogQueueSizeParam = filterConfig.getInitParameter("asyncLogQueueSize");
+    if (StringUtils.hasText(asyncLogQueueSizeParam)) {
+      setAsyncLogQueueSize(Integer.parseInt(asyncLogQueueSizeParam.trim()));
+    }
   }
 
   @Override
   public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
 
-    // Create copy outpustream and wrap response to use this
-    final OutputStream outputStreamCopy = new ByteArrayOutputStream();
-    HttpServletResponse wrappedResponse = new MemorizingResponseWrapper((HttpServletResponse) response, outputStreamCopy);
+    // Only copy the response if it is going to be logged
+    BoundedCaptureOutputStream outputStreamCopy = null;
+    if (RESPONSE_LOG.isTraceEnabled()) {
+      outputStreamCopy = new BoundedCaptureOutputStream(maxCaptureSize, capturePool);
+    }
+    MemorizingResponseWrapper wrappedResponse = new MemorizingResponseWrapper((HttpServletResponse) response,
+            outputStreamCopy, captureBypassContentTypes);
 
     // Generate unique request id to make correlation request-log and response log easier
-    String requestId;
-    synchronized (lock) {
-      requestId = generateRequestId();
-    }
+    String requestId = nextRequestId();
 
     request.setAttribute(REQUEST_ID_ATTR, requestId);
-    request.setAttribute(OUTPUT_STREAM_COPY_ATTR, outputStreamCopy);
 
     preHandle((HttpServletRequest) request, requestId);
     try {
       chain.doFilter(request, wrappedResponse);
-      postHandle(request, wrappedResponse, null);
+      postHandle(request, wrappedResponse, outputStreamCopy, null);
 
     } catch (IOException ioe) {
-      postHandle(request, wrappedResponse, ioe);
+      postHandle(request, wrappedResponse, outputStreamCopy, ioe);
       throw ioe;
     } catch (ServletException se) {
-      postHandle(request, wrappedResponse, se);
+      postHandle(request, wrappedResponse, outputStreamCopy, se);
       throw se;
     } catch (RuntimeException rte) {
-      postHandle(request, wrappedResponse, rte);
+      postHandle(request, wrappedResponse, outputStreamCopy, rte);
       throw rte;
     }
   }
 
+  String nextRequestId() {
+    if (synchronizedRequestIds) {
+      synchronized (lock) {
+        return generateRequestId();
+      }
+    }
+    return generateRequestId();
+  }
+
   /**
-   * Create a request id. Calls to it are synchronized externally, so the implementation does not have to be thread safe.
+   * Create a request id. The default implementation is thread safe and lock free: a prefix that is unique per filter
+   * instance plus a counter. Calls to overriding implementations are synchronized externally, so they do not have to
+   * be thread safe.
    * @return unique string
    */
   protected String generateRequestId() {
-    return UUID.randomUUID().toString();
+    return requestIdPrefix + Long.toString(requestIdCounter.incrementAndGet(), 36);
   }
 
+  /**
+   * Stop the background logging, after the queued log records are logged.
+   */
   @Override
   public void destroy() {
+    ThreadPoolExecutor executor = asyncLogExecutor;
+    if (executor != null) {
+      executor.shutdown();
+      try {
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * @param queueSize the maximum number of log records waiting to be logged by the background thread, 0 to log on the
+   * request thread
+   */
+  public void setAsyncLogQueueSize(int queueSize) {
+    ThreadPoolExecutor previous = asyncLogExecutor;
+    asyncLogExecutor = queueSize > 0 ? newAsyncLogExecutor(queueSize) : null;
+    if (previous != null) {
+      previous.shutdown();
+    }
+  }
+
+  private ThreadPoolExecutor newAsyncLogExecutor(int queueSize) {
+    return new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueSize),
+            new ThreadFactory() {
+              @Override
+              public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "LoggingFilter-async-log");
+                thread.setDaemon(true);
+                return thread;
+              }
+            },
+            new RejectedExecutionHandler() {
+              @Override
+              public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                // After shutdown log on the request thread, otherwise the queue is full
+                if (executor.isShutdown()) {
+                  r.run();
+                } else {
+                  droppedLogRecords.incrementAndGet();
+                  ((LogRecord) r).discard();
+                }
+              }
+            });
+  }
+
+  /**
+   * @return the number of log records that were dropped because the queue of the background thread was full
+   */
+  public long getDroppedLogRecords() {
+    return droppedLogRecords.get();
+  }
+
+  /**
+   * @return the number of log records waiting to be logged by the background thread
+   */
+  public int getQueuedLogRecords() {
+    ThreadPoolExecutor executor = asyncLogExecutor;
+    return executor == null ? 0 : executor.getQueue().size();
+  }
+
+  /**
+   * @param maxCaptureSize the maximum number of bytes of the response body that is logged
+   */
+  public void setMaxCaptureSize(int maxCaptureSize) {
+    this.maxCaptureSize = maxCaptureSize;
+  }
+
+  /**
+   * @param chunkSize the size in bytes of the chunks the response body is copied to
+   * @param poolSize the maximum number of pooled chunks, 0 to allocate new chunks for every response
+   */
+  public void setCapturePool(int chunkSize, int poolSize) {
+    this.capturePool = poolSize > 0 ? new CaptureBufferPool(chunkSize, poolSize) : null;
+  }
+
+  /**
+   * @return the pool of chunks the response body is copied to, null if they are not pooled
+   */
+  public CaptureBufferPool getCapturePool() {
+    return capturePool;
+  }
+
+  /**
+   * @param exposeOutputStreamCopy whether the copy of the response body is set as request attribute
+   * {@value #OUTPUT_STREAM_COPY_ATTR}, false by default as it takes an array of up to maxCaptureSize bytes per request
+   */
+  public void setExposeOutputStreamCopy(boolean exposeOutputStreamCopy) {
+    this.exposeOutputStreamCopy = exposeOutputStreamCopy;
+  }
+
+  /**
+   * @param captureBypassContentTypes comma separated content type prefixes of the responses that are not logged
+   */
+  public void setCaptureBypassContentTypes(String captureBypassContentTypes) {
+    this.captureBypassContentTypes = StringUtils.tokenizeToStringArray(captureBypassContentTypes, ",");
   }
 
   private void preHandle(HttpServletRequest request, String requestId) {
+    ThreadPoolExecutor executor = asyncLogExecutor;
+    if (executor != null) {
+      if (REQUEST_LOG.isDebugEnabled()) {
+        executor.execute(new RequestLogRecord(requestId, request.getMethod(), request.getRequestURL().toString(),
+                request.getQueryString(), REQUEST_LOG.isTraceEnabled() ? headers(request) : null));
+      }
+      return;
+    }
     // Log basic request information at debug level
     if (REQUEST_LOG.isDebugEnabled()) {
       REQUEST_LOG.debug("{} {} {}?{}",
@@ -121,11 +317,53 @@ public class LoggingFilter implements Filter {
     }
   }
 
-  private void postHandle(ServletRequest request, HttpServletResponse response, Exception e) {
+  /*
+   * Header names and values, alternating
+   */
+  private String[] headers(HttpServletRequest request) {
+    List<String> headers = new ArrayList<String>();
+    @SuppressWarnings("unchecked")
+    Enumeration<String> headerNames = request.getHeaderNames();
+    while (headerNames.hasMoreElements()) {
+      String headerName = headerNames.nextElement();
+      Enumeration headerValues = request.getHeaders(headerName);
+      while (headerValues.hasMoreElements()) {
+        headers.add(headerName);
+        headers.add(String.valueOf(headerValues.nextElement()));
+      }
+    }
+    return headers.toArray(new String[headers.size()]);
+  }
 
-    String responseData = ((ByteArrayOutputStream) request.getAttribute(OUTPUT_STREAM_COPY_ATTR)).toString();
+  private void postHandle(ServletRequest request, MemorizingResponseWrapper response,
+                          BoundedCaptureOutputStream outputStreamCopy, Exception e) {
+    boolean handedOff = false;
+    try {
+      ResponseBodyCopy responseBodyCopy = null;
+      if (outputStreamCopy != null && exposeOutputStreamCopy && !response.isBypassed()) {
+        responseBodyCopy = new ResponseBodyCopy(outputStreamCopy.toByteArray(), outputStreamCopy.getTotalSize());
+        request.setAttribute(OUTPUT_STREAM_COPY_ATTR, responseBodyCopy);
+      }
+      ThreadPoolExecutor executor = asyncLogExecutor;
+      if (executor != null) {
+        if (RESPONSE_LOG.isDebugEnabled() || e != null) {
+          ResponseLogRecord record = responseLogRecord(request, response, outputStreamCopy, responseBodyCopy, e);
+          handedOff = record.copy != null;
+          executor.execute(record);
+        }
+      } else {
+        logResponse(request, response, outputStreamCopy, e);
+      }
+    } finally {
+      // The response data is logged, return the chunks of the copy to the pool unless the log record does that
+      if (outputStreamCopy != null && !handedOff) {
+        outputStreamCopy.release();
+      }
+    }
+  }
 
-    MemorizingResponseWrapper responseWrapper = (MemorizingResponseWrapper) response;
+  private void logResponse(ServletRequest request, MemorizingResponseWrapper responseWrapper,
+                           BoundedCaptureOutputStream outputStreamCopy, Exception e) {
 
     if (RESPONSE_LOG.isDebugEnabled()) {
       String requestId = (String) request.getAttribute(REQUEST_ID_ATTR);
@@ -133,8 +371,14 @@ public class LoggingFilter implements Filter {
               requestId,
               responseWrapper.getStatus());
 
-      if (RESPONSE_LOG.isTraceEnabled()) {
-        RESPONSE_LOG.trace("{} Response data: {}", requestId, responseData);
+      if (RESPONSE_LOG.isTraceEnabled() && outputStreamCopy != null) {
+        if (responseWrapper.isBypassed()) {
+          RESPONSE_LOG.trace("{} Response data of content type {} not logged", requestId, responseWrapper.getContentType());
+        } else {
+          String data = outputStreamCopy.toString(charset(responseWrapper.getCharacterEncoding()));
+          RESPONSE_LOG.trace("{} Response data: {}", requestId,
+                  responseData(data, outputStreamCopy.getSize(), outputStreamCopy.getTotalSize()));
+        }
       }
     }
     if (e != null) {
@@ -143,14 +387,224 @@ public class LoggingFilter implements Filter {
     }
   }
 
+  private ResponseLogRecord responseLogRecord(ServletRequest request, MemorizingResponseWrapper response,
+                                              BoundedCaptureOutputStream outputStreamCopy,
+                                              ResponseBodyCopy responseBodyCopy, Exception e) {
+    ResponseLogRecord record = new ResponseLogRecord();
+    record.requestId = (String) request.getAttribute(REQUEST_ID_ATTR);
+    record.status = response.getStatus();
+    record.exceptionMessage = e == null ? null : e.getMessage();
+    record.exception = e != null;
+    if (RESPONSE_LOG.isTraceEnabled() && outputStreamCopy != null) {
+      record.contentType = response.getContentType();
+      record.bypassed = response.isBypassed();
+      if (!record.bypassed) {
+        // the exposed copy is immutable, so the record can share its bytes, otherwise it takes over the chunks
+        if (responseBodyCopy != null) {
+          record.body = responseBodyCopy.bytes();
+        } else {
+          record.copy = outputStreamCopy;
+        }
+        record.totalSize = outputStreamCopy.getTotalSize();
+        record.characterEncoding = response.getCharacterEncoding();
+      }
+    }
+    return record;
+  }
+
+  /**
+   * Immutable copy of the response body, the value of request attribute {@value #OUTPUT_STREAM_COPY_ATTR}. It holds at
+   * most maxCaptureSize bytes of the body. Writing to it is not supported.
+   */
+  public static final class ResponseBodyCopy extends ByteArrayOutputStream {
+
+    private final long totalSize;
+
+    /**
+     * @param body the copied bytes, which must not be changed afterwards
+     * @param totalSize the size of the complete response body
+     */
+    public ResponseBodyCopy(byte[] body, long totalSize) {
+      super(0);
+      this.buf = body;
+      this.count = body.length;
+      this.totalSize = totalSize;
+    }
+
+    @Override
+    public synchronized void write(int b) {
+      throw new UnsupportedOperationException("The response body copy is read-only");
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+      throw new UnsupportedOperationException("The response body copy is read-only");
+    }
+
+    @Override
+    public synchronized void reset() {
+      throw new UnsupportedOperationException("The response body copy is read-only");
+    }
+
+    /**
+     * @return the size of the complete response body, including the bytes that were not copied
+     */
+    public long getTotalSize() {
+      return totalSize;
+    }
+
+    /**
+     * @return whether the response body is larger than the copy
+     */
+    public boolean isTruncated() {
+      return totalSize > count;
+    }
+
+    /*
+     * The copied bytes, without copying them again
+     */
+    private byte[] bytes() {
+      return buf;
+    }
+  }
+
+  /**
+   * Log record that is logged by the background thread with the MDC of the request thread.
+   */
+  private abstract static class LogRecord implements Runnable {
+    @SuppressWarnings("unchecked")
+    private final Map<String, String> mdc = MDC.getCopyOfContextMap();
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public final void run() {
+      // after shutdown the record runs on the request thread, whose MDC is restored afterwards
+      Map<String, String> previous = MDC.getCopyOfContextMap();
+      setMdc(mdc);
+      try {
+        log();
+      } finally {
+        setMdc(previous);
+        discard();
+      }
+    }
+
+    private static void setMdc(Map<String, String> contextMap) {
+      if (contextMap == null) {
+        MDC.clear();
+      } else {
+        MDC.setContextMap(contextMap);
+      }
+    }
+
+    protected abstract void log();
+
+    /**
+     * Release the resources of the record, it is logged or dropped.
+     */
+    protected void discard() {
+    }
+  }
+
+  /**
+   * Snapshot of the request line and headers, logged by the background thread.
+   */
+  private static final class RequestLogRecord extends LogRecord {
+    private final String requestId;
+    private final String method;
+    private final String requestURL;
+    private final String queryString;
+    private final String[] headers;
+
+    private RequestLogRecord(String requestId, String method, String requestURL, String queryString, String[] headers) {
+      this.requestId = requestId;
+      this.method = method;
+      this.requestURL = requestURL;
+      this.queryString = queryString;
+      this.headers = headers;
+    }
+
+    @Override
+    protected void log() {
+      REQUEST_LOG.debug("{} {} {}?{}", requestId, method, requestURL, queryString);
+      if (headers != null) {
+        for (int i = 0; i < headers.length; i += 2) {
+          REQUEST_LOG.trace("{} Header: {}: {}", requestId, headers[i], headers[i + 1]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Snapshot of the response status and the raw bytes of the response body, logged by the background thread.
+   */
+  private static final class ResponseLogRecord extends LogRecord {
+    private String requestId;
+    private String status;
+    private boolean exception;
+    private String exceptionMessage;
+    private String contentType;
+    private boolean bypassed;
+    private String characterEncoding;
+    private byte[] body;
+    private BoundedCaptureOutputStream copy;
+    private long totalSize;
+
+    @Override
+    protected void log() {
+      RESPONSE_LOG.debug("{} Response status: {}", requestId, status);
+      if (bypassed) {
+        RESPONSE_LOG.trace("{} Response data of content type {} not logged", requestId, contentType);
+      } else if (body != null || copy != null) {
+        Charset charset = charset(characterEncoding);
+        String data = body != null ? new String(body, charset) : copy.toString(charset);
+        long size = body != null ? body.length : copy.getSize();
+        RESPONSE_LOG.trace("{} Response data: {}", requestId, responseData(data, size, totalSize));
+      }
+      if (exception) {
+        RESPONSE_LOG.info("Exception in request {}: {}", requestId, exceptionMessage);
+      }
+    }
+
+    @Override
+    protected void discard() {
+      if (copy != null) {
+        copy.release();
+        copy = null;
+      }
+    }
+  }
+
+  /*
+   * The charset the response body is decoded with, on the request thread as well as on the background thread
+   */
+  private static Charset charset(String characterEncoding) {
+    if (characterEncoding != null) {
+      try {
+        return Charset.forName(characterEncoding);
+      } catch (IllegalArgumentException e) {
+        // illegal or unsupported charset name
+      }
+    }
+    return Charset.defaultCharset();
+  }
+
+  private static String responseData(String data, long size, long totalSize) {
+    return totalSize > size ? data + "... (truncated, " + totalSize + " bytes in total)" : data;
+  }
+
   /**
    * Response wrapper that keeps the response for logging, as well as the HTTP status.
    */
   public static class MemorizingResponseWrapper extends HttpServletResponseWrapper {
 
+    private static final String CONTENT_TYPE_HEADER = "Content-Type";
+
     private final OutputStream outputStream;
+    private final String[] bypassContentTypes;
 
     private String status;
+    private boolean bypassed;
 
     @Override
     public void setStatus(int sc) {
@@ -176,15 +630,101 @@ public class LoggingFilter implements Filter {
     }
 
     public MemorizingResponseWrapper(HttpServletResponse response, OutputStream outputStream) {
+      this(response, outputStream, new String[0]);
+    }
+
+    /**
+     * @param response the response to wrap
+     * @param outputStream the stream the response body is copied to, null to not copy it
+     * @param bypassContentTypes the content type prefixes of the responses that are not copied
+     */
+    public MemorizingResponseWrapper(HttpServletResponse response, OutputStream outputStream, String[] bypassContentTypes) {
       super(response);
       this.outputStream = outputStream;
+      this.bypassContentTypes = bypassContentTypes;
+      contentTypeSet(response.getContentType());
+    }
+
+    @Override
+    public void setContentType(String type) {
+      super.setContentType(type);
+      contentTypeSet(type);
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+      super.setHeader(name, value);
+      if (CONTENT_TYPE_HEADER.equalsIgnoreCase(name)) {
+        contentTypeSet(value);
+      }
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+      super.addHeader(name, value);
+      if (CONTENT_TYPE_HEADER.equalsIgnoreCase(name)) {
+        contentTypeSet(value);
+      }
+    }
+
+    /*
+     * The content type is only checked when it is set, so writes do not have to look it up. Once bypassed the copy
+     * stays incomplete, so it is not resumed for a later content type.
+     */
+    private void contentTypeSet(String contentType) {
+      if (!bypassed && isBypassedContentType(contentType)) {
+        bypassed = true;
+      }
     }
 
     public ServletOutputStream getOutputStream() throws IOException {
-        return new DelegatingServletOutputStream(
-                new TeeOutputStream(super.getOutputStream(), outputStream)
-        );
+      if (outputStream == null || isBypassed()) {
+        return super.getOutputStream();
       }
+      return new DelegatingServletOutputStream(
+              new TeeOutputStream(super.getOutputStream(), new BypassableCopy())
+      );
+    }
+
+    private boolean isBypassedContentType(String contentType) {
+      if (contentType == null) {
+        return false;
+      }
+      for (String bypassContentType : bypassContentTypes) {
+        if (contentType.regionMatches(true, 0, bypassContentType, 0, bypassContentType.length())) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /**
+     * @return whether the response body is not copied because of its content type, which may have been set after the
+     * output stream was obtained
+     */
+    public boolean isBypassed() {
+      return bypassed;
+    }
+
+    /*
+     * Copies the written bytes until the response turns out to have a bypassed content type
+     */
+    private class BypassableCopy extends OutputStream {
+
+      @Override
+      public void write(int b) throws IOException {
+        if (!bypassed) {
+          outputStream.write(b);
+        }
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        if (!bypassed) {
+          outputStream.write(b, off, len);
+        }
+      }
+    }
 
     public String getStatus() {
       return status;
@@ -24,6 +24,7 @@ import java.util.Date;
  */
 public class ApiCallLog {
 
+  private Long id;
   private String userId;
   private String spEntityId;
   private String ipAddress;
@@ -31,6 +32,22 @@ public class ApiCallLog {
   private String resourceUrl;
   private String consumerKey;
   private Date timestamp;
+  private int callCount = 1;
+
+  /**
+   * @return the id, {@literal null} if the log is not stored yet
+   */
+  public Long getId() {
+    return id;
+  }
+
+  /**
+   * @param id
+   *          the id to set
+   */
+  public void setId(Long id) {
+    this.id = id;
+  }
 
   /**
    * @return the userId
@@ -136,4 +153,19 @@ public class ApiCallLog {
     this.timestamp = timestamp;
   }
 
+  /**
+   * @return the number of Api requests this log stands for, more than 1 if
+   *         identical requests were coalesced or sampled
+   */
+  public int getCallCount() {
+    return callCount;
+  }
+
+  /**
+   * @param callCount the callCount to set
+   */
+  public void setCallCount(int callCount) {
+    this.callCount = callCount;
+  }
+
 }
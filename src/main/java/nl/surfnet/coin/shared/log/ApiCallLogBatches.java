@@ -0,0 +1,47 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfnet.coin.shared.log;
+
+import java.util.List;
+
+/**
+ * Helper for writing batches of ApiCallLogs to any {@link ApiCallLogService}.
+ * 
+ */
+final class ApiCallLogBatches {
+
+  private ApiCallLogBatches() {
+  }
+
+  /**
+   * Save the logs in one batch if the service supports it, one by one
+   * otherwise.
+   * 
+   * @param service
+   *          the service to save the logs with
+   * @param logs
+   *          the ApiCallLogs to be inserted
+   */
+  static void save(ApiCallLogService service, List<ApiCallLog> logs) {
+    if (service instanceof BatchApiCallLogService) {
+      ((BatchApiCallLogService) service).saveApiCallLogs(logs);
+      return;
+    }
+    for (ApiCallLog log : logs) {
+      service.saveApiCallLog(log);
+    }
+  }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfnet.coin.shared.log;
+
+import java.util.Date;
+
+/**
+ * Callback for processing ApiCallLogs one at a time, see
+ * {@link TimeRangeApiCallLogService#findApiCallLog(String, Date, Date, ApiCallLogCallback)}
+ * 
+ */
+public interface ApiCallLogCallback {
+
+  /**
+   * Process a single ApiCallLog
+   * 
+   * @param log
+   *          the ApiCallLog
+   */
+  void processApiCallLog(ApiCallLog log);
+}
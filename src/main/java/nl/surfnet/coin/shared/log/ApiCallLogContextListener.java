@@ -17,11 +17,17 @@ package nl.surfnet.coin.shared.log;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.util.concurrent.Callable;
 
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
 import javax.servlet.ServletRequestEvent;
 import javax.servlet.ServletRequestListener;
 import javax.servlet.http.HttpServletRequest;
 
+import org.springframework.util.AntPathMatcher;
+import org.springframework.util.PathMatcher;
 import org.springframework.util.StringUtils;
 
 /**
@@ -31,11 +37,59 @@ import org.springframework.util.StringUtils;
  * actually store the log record (e.g. shindig service implementation) and we
  * can't modify all Shindig interfaces to pass the info we need to apply the
  * {@link ThreadLocal} strategy.
+ * <p>
+ * Only the parts of the request URL are kept when the request starts; the
+ * ApiCallLog and its (encoded) resource URL are built when
+ * {@link #getApiCallLog()} is first called. Requests can be skipped altogether
+ * with comma separated Ant-style path patterns (relative to the context path)
+ * in the context parameters {@value #INCLUDES_PARAM} and
+ * {@value #EXCLUDES_PARAM}, e.g. to not capture static resources or health
+ * checks. The context parameters are read when the listener is also
+ * registered as {@link ServletContextListener}.
+ * <p>
+ * Containers do not notify request listeners of async dispatches, so work
+ * handed off to another thread (e.g. with Servlet 3 startAsync or an
+ * executor) must be wrapped with {@link #wrap(Runnable)} or
+ * {@link #wrap(Callable)} on the request thread. The wrapper binds the
+ * ApiCallLog of the request while the task runs and unbinds it afterwards.
  * 
  */
-public class ApiCallLogContextListener implements ServletRequestListener {
+public class ApiCallLogContextListener implements ServletRequestListener, ServletContextListener {
 
-  private static final ThreadLocal<ApiCallLog> apiCallLogHolder = new ThreadLocal<ApiCallLog>();
+  public static final String INCLUDES_PARAM = "apiCallLogIncludes";
+  public static final String EXCLUDES_PARAM = "apiCallLogExcludes";
+
+  private static final ThreadLocal<RequestCapture> apiCallLogHolder = new ThreadLocal<RequestCapture>();
+
+  private final PathMatcher pathMatcher = new AntPathMatcher();
+
+  private volatile String[] includes = new String[0];
+  private volatile String[] excludes = new String[0];
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * javax.servlet.ServletContextListener#contextInitialized(javax.servlet.
+   * ServletContextEvent)
+   */
+  @Override
+  public void contextInitialized(ServletContextEvent sce) {
+    ServletContext servletContext = sce.getServletContext();
+    setIncludes(servletContext.getInitParameter(INCLUDES_PARAM));
+    setExcludes(servletContext.getInitParameter(EXCLUDES_PARAM));
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * javax.servlet.ServletContextListener#contextDestroyed(javax.servlet.
+   * ServletContextEvent)
+   */
+  @Override
+  public void contextDestroyed(ServletContextEvent sce) {
+  }
 
   /*
    * (non-Javadoc)
@@ -45,8 +99,8 @@ public class ApiCallLogContextListener implements ServletRequestListener {
    */
   @Override
   public void requestDestroyed(ServletRequestEvent sre) {
-    apiCallLogHolder.set(null);
-
+    // remove instead of set(null), so the worker thread does not keep an entry
+    apiCallLogHolder.remove();
   }
 
   /*
@@ -57,30 +111,195 @@ public class ApiCallLogContextListener implements ServletRequestListener {
    */
   @Override
   public void requestInitialized(ServletRequestEvent requestEvent) {
-    ApiCallLog apiCallLog = new ApiCallLog();
     HttpServletRequest request = (HttpServletRequest) requestEvent.getServletRequest();
-    String queryString = request.getQueryString();
-    StringBuffer requestURL = request.getRequestURL();
-    if (StringUtils.hasText(queryString)) {
-      requestURL.append("?").append(queryString);
+    if (isCaptured(request)) {
+      apiCallLogHolder.set(new RequestCapture(request));
+    } else {
+      apiCallLogHolder.remove();
+    }
+  }
+
+  private boolean isCaptured(HttpServletRequest request) {
+    String[] currentIncludes = includes;
+    String[] currentExcludes = excludes;
+    if (currentIncludes.length == 0 && currentExcludes.length == 0) {
+      return true;
+    }
+    String path = request.getRequestURI();
+    String contextPath = request.getContextPath();
+    if (path != null && contextPath != null && path.startsWith(contextPath)) {
+      path = path.substring(contextPath.length());
+    }
+    if (path == null) {
+      path = "";
+    }
+    for (String exclude : currentExcludes) {
+      if (pathMatcher.match(exclude, path)) {
+        return false;
+      }
     }
-    try {
-      apiCallLog.setResourceUrl(URLEncoder.encode(requestURL.toString(), "utf-8"));
-      apiCallLog.setIpAddress(request.getRemoteAddr());
-    } catch (UnsupportedEncodingException e) {
-      // will never happen as utf-8 is the encoding
+    if (currentIncludes.length == 0) {
+      return true;
     }
-    apiCallLogHolder.set(apiCallLog);
+    for (String include : currentIncludes) {
+      if (pathMatcher.match(include, path)) {
+        return true;
+      }
+    }
+    return false;
   }
 
   /**
    * Get the ApiCallLog of the current thread
    * 
-   * @return the apiCallLog
+   * @return the apiCallLog, or a new ApiCallLog that is not bound to the
+   *         thread if the thread is not handling a captured request (see
+   *         {@link #getBoundApiCallLog()})
    */
   public static ApiCallLog getApiCallLog() {
-    ApiCallLog apiCallLog = apiCallLogHolder.get();
+    ApiCallLog apiCallLog = getBoundApiCallLog();
     return (apiCallLog == null) ? new ApiCallLog() : apiCallLog;
   }
 
+  /**
+   * Get the ApiCallLog of the current thread, if any
+   * 
+   * @return the apiCallLog, {@literal null} if the thread is not handling a
+   *         captured request
+   */
+  public static ApiCallLog getBoundApiCallLog() {
+    RequestCapture capture = apiCallLogHolder.get();
+    return (capture == null) ? null : capture.getApiCallLog();
+  }
+
+  /**
+   * @param task
+   *          the task to hand off to another thread
+   * @return a Runnable that runs the task with the ApiCallLog of the current
+   *         thread bound, the thread that runs it is unbound afterwards
+   */
+  public static Runnable wrap(final Runnable task) {
+    final RequestCapture capture = apiCallLogHolder.get();
+    return new Runnable() {
+      @Override
+      public void run() {
+        RequestCapture previous = bind(capture);
+        try {
+          task.run();
+        } finally {
+          bind(previous);
+        }
+      }
+    };
+  }
+
+  /**
+   * @param task
+   *          the task to hand off to another thread
+   * @return a Callable that calls the task with the ApiCallLog of the current
+   *         thread bound, the thread that calls it is unbound afterwards
+   */
+  public static <T> Callable<T> wrap(final Callable<T> task) {
+    final RequestCapture capture = apiCallLogHolder.get();
+    return new Callable<T>() {
+      @Override
+      public T call() throws Exception {
+        RequestCapture previous = bind(capture);
+        try {
+          return task.call();
+        } finally {
+          bind(previous);
+        }
+      }
+    };
+  }
+
+  /*
+   * Bind the capture to the current thread, returns the previously bound one
+   */
+  private static RequestCapture bind(RequestCapture capture) {
+    RequestCapture previous = apiCallLogHolder.get();
+    if (capture == null) {
+      apiCallLogHolder.remove();
+    } else {
+      apiCallLogHolder.set(capture);
+    }
+    return previous;
+  }
+
+  /**
+   * @param includes
+   *          comma separated Ant-style patterns of the paths that are
+   *          captured, all paths if empty
+   */
+  public void setIncludes(String includes) {
+    this.includes = StringUtils.tokenizeToStringArray(includes, ",");
+  }
+
+  /**
+   * @param excludes
+   *          comma separated Ant-style patterns of the paths that are not
+   *          captured
+   */
+  public void setExcludes(String excludes) {
+    this.excludes = StringUtils.tokenizeToStringArray(excludes, ",");
+  }
+
+  /*
+   * The parts of the request that end up in the ApiCallLog. These are
+   * references to strings the container already holds, the URL is only
+   * assembled and encoded when the ApiCallLog is requested. A capture can be
+   * bound to several threads by wrapped tasks, hence the synchronization.
+   */
+  private static final class RequestCapture {
+    private final String scheme;
+    private final String serverName;
+    private final int serverPort;
+    private final String requestURI;
+    private final String queryString;
+    private final String remoteAddr;
+    private ApiCallLog apiCallLog;
+
+    private RequestCapture(HttpServletRequest request) {
+      scheme = request.getScheme();
+      serverName = request.getServerName();
+      serverPort = request.getServerPort();
+      requestURI = request.getRequestURI();
+      queryString = request.getQueryString();
+      remoteAddr = request.getRemoteAddr();
+    }
+
+    private synchronized ApiCallLog getApiCallLog() {
+      if (apiCallLog == null) {
+        apiCallLog = new ApiCallLog();
+        try {
+          apiCallLog.setResourceUrl(URLEncoder.encode(requestUrl(), "utf-8"));
+          apiCallLog.setIpAddress(remoteAddr);
+        } catch (UnsupportedEncodingException e) {
+          // will never happen as utf-8 is the encoding
+        }
+      }
+      return apiCallLog;
+    }
+
+    /*
+     * Same URL as HttpServletRequest#getRequestURL, with the query string
+     */
+    private String requestUrl() {
+      StringBuilder requestURL = new StringBuilder(64);
+      requestURL.append(scheme).append("://").append(serverName);
+      boolean defaultPort = ("http".equals(scheme) && serverPort == 80) || ("https".equals(scheme) && serverPort == 443);
+      if (serverPort > 0 && !defaultPort) {
+        requestURL.append(':').append(serverPort);
+      }
+      if (requestURI != null) {
+        requestURL.append(requestURI);
+      }
+      if (StringUtils.hasText(queryString)) {
+        requestURL.append("?").append(queryString);
+      }
+      return requestURL.toString();
+    }
+  }
+
 }
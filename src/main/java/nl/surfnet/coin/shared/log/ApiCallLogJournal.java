@@ -0,0 +1,190 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfnet.coin.shared.log;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Format of the journal segments written by {@link JournalApiCallLogService}
+ * and read by {@link ApiCallLogJournalLoader}. A segment starts with a header
+ * of the int {@link #MAGIC} and the format version as byte, followed by a
+ * sequence of records, each an int length followed by the record itself: the
+ * timestamp as long, the call count as int and the string fields of the
+ * ApiCallLog as int length (-1 for {@literal null}) followed by the UTF-8
+ * bytes. A length of 0 marks the end of the records, the length is written
+ * after the record so a partially written record is never read.
+ * <p>
+ * Segments without header are version 1, whose records have no call count.
+ * 
+ */
+final class ApiCallLogJournal {
+
+  static final String PREFIX = "api-call-log-";
+  static final String OPEN_SUFFIX = ".open";
+  static final String SEGMENT_SUFFIX = ".journal";
+
+  static final int MAGIC = 0x41434c4a;
+  static final byte VERSION = 2;
+  static final int HEADER_SIZE = 5;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private ApiCallLogJournal() {
+  }
+
+  static byte[] encode(ApiCallLog log) {
+    byte[][] fields = new byte[][] { bytes(log.getUserId()), bytes(log.getSpEntityId()), bytes(log.getIpAddress()),
+        bytes(log.getApiVersion()), bytes(log.getResourceUrl()), bytes(log.getConsumerKey()) };
+    int size = 12;
+    for (byte[] field : fields) {
+      size += 4 + (field == null ? 0 : field.length);
+    }
+    ByteBuffer record = ByteBuffer.allocate(size);
+    record.putLong(log.getTimestamp() == null ? System.currentTimeMillis() : log.getTimestamp().getTime());
+    record.putInt(log.getCallCount());
+    for (byte[] field : fields) {
+      if (field == null) {
+        record.putInt(-1);
+      } else {
+        record.putInt(field.length).put(field);
+      }
+    }
+    return record.array();
+  }
+
+  static void writeHeader(ByteBuffer segment) {
+    segment.putInt(MAGIC).put(VERSION);
+  }
+
+  /**
+   * @return the format version of the segment, which is positioned at the
+   *         first record
+   */
+  static int readHeader(ByteBuffer segment) {
+    // the first int of a version 1 segment is the length of a record, which is never the magic number
+    if (segment.remaining() >= HEADER_SIZE && segment.getInt(segment.position()) == MAGIC) {
+      segment.getInt();
+      return segment.get() & 0xff;
+    }
+    return 1;
+  }
+
+  /**
+   * @param version
+   *          the format version of the segment, see
+   *          {@link #readHeader(ByteBuffer)}
+   * @return the next record of the segment, {@literal null} at the end of the
+   *         records
+   */
+  static ApiCallLog decode(ByteBuffer segment, int version) {
+    if (segment.remaining() < 4) {
+      return null;
+    }
+    int length = segment.getInt();
+    if (length <= 0 || length > segment.remaining()) {
+      return null;
+    }
+    ApiCallLog log = new ApiCallLog();
+    log.setTimestamp(new Date(segment.getLong()));
+    if (version >= 2) {
+      log.setCallCount(segment.getInt());
+    }
+    log.setUserId(string(segment));
+    log.setSpEntityId(string(segment));
+    log.setIpAddress(string(segment));
+    log.setApiVersion(string(segment));
+    log.setResourceUrl(string(segment));
+    log.setConsumerKey(string(segment));
+    return log;
+  }
+
+  private static byte[] bytes(String value) {
+    return value == null ? null : value.getBytes(UTF8);
+  }
+
+  private static String string(ByteBuffer segment) {
+    int length = segment.getInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    segment.get(bytes);
+    return new String(bytes, UTF8);
+  }
+
+  /**
+   * Release the mapping of a segment now instead of when the buffer is garbage
+   * collected. The buffer must not be used afterwards.
+   */
+  static void unmap(MappedByteBuffer buffer) {
+    try {
+      // Java 9 and later
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+      Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      invokeCleaner.invoke(theUnsafe.get(null), buffer);
+      return;
+    } catch (Exception e) {
+      // fall through to the cleaner of the buffer
+    }
+    try {
+      Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+      cleanerMethod.setAccessible(true);
+      Object cleaner = cleanerMethod.invoke(buffer);
+      if (cleaner != null) {
+        cleaner.getClass().getMethod("clean").invoke(cleaner);
+      }
+    } catch (Exception e) {
+      // the mapping is released when the buffer is garbage collected
+    }
+  }
+
+  static File segmentFile(File directory, long sequence, String suffix) {
+    return new File(directory, PREFIX + String.format("%016d", sequence) + suffix);
+  }
+
+  static long sequence(File segment) {
+    String name = segment.getName();
+    return Long.parseLong(name.substring(PREFIX.length(), name.lastIndexOf('.')));
+  }
+
+  /**
+   * @return the segments with the given suffix, oldest first
+   */
+  static File[] segments(File directory, final String suffix) {
+    File[] segments = directory.listFiles(new FileFilter() {
+      @Override
+      public boolean accept(File file) {
+        return file.isFile() && file.getName().startsWith(PREFIX) && file.getName().endsWith(suffix);
+      }
+    });
+    if (segments == null) {
+      return new File[0];
+    }
+    // the sequence is zero padded, so the names sort in sequence order
+    Arrays.sort(segments);
+    return segments;
+  }
+}
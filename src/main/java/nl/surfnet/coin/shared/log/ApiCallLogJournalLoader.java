@@ -0,0 +1,186 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfnet.coin.shared.log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.util.Assert;
+
+/**
+ * Imports the completed segments of the journal written by
+ * {@link JournalApiCallLogService} into the database, in batches through
+ * {@link BatchApiCallLogService#saveApiCallLogs(List)}. A segment is deleted once
+ * it is imported. Loading is at-least-once: a segment that was partly
+ * imported when the process stopped is imported again as a whole. Segments of
+ * an unknown format version are left in place.
+ * 
+ */
+public class ApiCallLogJournalLoader implements DisposableBean {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ApiCallLogJournalLoader.class);
+
+  private final File directory;
+  private final ApiCallLogService target;
+
+  private int batchSize = 500;
+
+  private ScheduledExecutorService loader;
+
+  /**
+   * @param directory
+   *          the directory of the journal segments
+   * @param target
+   *          the service the logs are imported with, usually an
+   *          {@link ApiCallLogServiceImpl}
+   */
+  public ApiCallLogJournalLoader(File directory, ApiCallLogService target) {
+    Assert.notNull(target, "Target ApiCallLogService must not be null");
+    this.directory = directory;
+    this.target = target;
+  }
+
+  /**
+   * Import all completed segments, oldest first
+   * 
+   * @return the number of imported logs
+   */
+  public synchronized long load() throws IOException {
+    long loaded = 0;
+    for (File segment : ApiCallLogJournal.segments(directory, ApiCallLogJournal.SEGMENT_SUFFIX)) {
+      long segmentLoaded = load(segment);
+      if (segmentLoaded < 0) {
+        continue;
+      }
+      loaded += segmentLoaded;
+      if (!segment.delete()) {
+        throw new IOException("Could not delete imported journal segment " + segment);
+      }
+    }
+    return loaded;
+  }
+
+  /*
+   * Returns the number of imported logs, -1 if the segment has an unknown format
+   */
+  private long load(File segment) throws IOException {
+    long start = System.currentTimeMillis();
+    MappedByteBuffer buffer;
+    RandomAccessFile file = new RandomAccessFile(segment, "r");
+    try {
+      buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+    } finally {
+      file.close();
+    }
+    long loaded = 0;
+    try {
+      int version = ApiCallLogJournal.readHeader(buffer);
+      if (version < 1 || version > ApiCallLogJournal.VERSION) {
+        LOG.error("Journal segment {} has unknown format version {}, it is not imported", segment, version);
+        return -1;
+      }
+      List<ApiCallLog> batch = new ArrayList<ApiCallLog>(batchSize);
+      ApiCallLog log;
+      while ((log = ApiCallLogJournal.decode(buffer, version)) != null) {
+        batch.add(log);
+        if (batch.size() == batchSize) {
+          ApiCallLogBatches.save(target, batch);
+          loaded += batch.size();
+          batch.clear();
+        }
+      }
+      ApiCallLogBatches.save(target, batch);
+      loaded += batch.size();
+    } finally {
+      // release the mapping before the segment is deleted
+      ApiCallLogJournal.unmap(buffer);
+    }
+    LOG.info("Imported {} ApiCallLogs from journal segment {} in {} ms", new Object[] { loaded, segment,
+        System.currentTimeMillis() - start });
+    return loaded;
+  }
+
+  /**
+   * Import periodically in a background thread
+   * 
+   * @param loadIntervalMillis
+   *          the time between two imports, 0 or less to only import on
+   *          {@link #load()}
+   */
+  public synchronized void setLoadIntervalMillis(long loadIntervalMillis) {
+    if (loader != null) {
+      loader.shutdown();
+      loader = null;
+    }
+    if (loadIntervalMillis <= 0) {
+      return;
+    }
+    loader = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "ApiCallLog-journal-loader");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    loader.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          load();
+        } catch (Exception e) {
+          LOG.error("Could not import the ApiCallLog journal, will retry on the next run", e);
+        }
+      }
+    }, loadIntervalMillis, loadIntervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stop the periodic import
+   */
+  @Override
+  public void destroy() {
+    ScheduledExecutorService current;
+    synchronized (this) {
+      current = loader;
+      loader = null;
+    }
+    if (current != null) {
+      current.shutdown();
+    }
+  }
+
+  /**
+   * @param batchSize
+   *          the maximum number of logs imported in one JDBC batch
+   */
+  public void setBatchSize(int batchSize) {
+    Assert.isTrue(batchSize > 0, "Batch size must be positive");
+    this.batchSize = batchSize;
+  }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfnet.coin.shared.log;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.SingleColumnRowMapper;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
+
+/**
+ * Removes the ApiCallLogs that are older than the retention period, so the
+ * api_call_log table does not grow forever. Rows are purged in small batches,
+ * each in its own transaction and with a pause in between, so a purge does not
+ * hold long locks or saturate the database. Optionally the rows are copied to
+ * an archive table with the columns of api_call_log before they are deleted,
+ * including call_count if api_call_log has it (see
+ * {@link #setCallCountColumn(boolean)}); the archive table should then have a
+ * call_count column as well, e.g. <code>call_count int default 1 not null</code>.
+ * Rows without log_timestamp are kept.
+ * 
+ */
+public class ApiCallLogRetentionService implements DisposableBean {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ApiCallLogRetentionService.class);
+
+  private static final String COLUMNS = "id, log_timestamp, user_id, spentity_id, ip_address, api_version, resource_url, consumer_key";
+
+  private static final String COLUMNS_WITH_COUNT = COLUMNS + ", call_count";
+
+  private final JdbcTemplate jdbcTemplate;
+  private final TransactionTemplate transactionTemplate;
+
+  private long maxAgeMillis = 90L * 24L * 60L * 60L * 1000L;
+  private int batchSize = 1000;
+  private long pauseMillis = 100;
+  private String archiveTable;
+  private boolean callCountColumn;
+
+  private final AtomicLong totalPurged = new AtomicLong();
+  private volatile long lastPurged;
+
+  private final Object purgeLock = new Object();
+  private ScheduledExecutorService purger;
+
+  public ApiCallLogRetentionService(DataSource dataSource) {
+    jdbcTemplate = new JdbcTemplate(dataSource);
+    transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+  }
+
+  public ApiCallLogRetentionService(JdbcTemplate template) {
+    jdbcTemplate = template;
+    transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(template.getDataSource()));
+  }
+
+  /**
+   * Purge the ApiCallLogs that are older than the retention period
+   * 
+   * @return the number of purged rows
+   */
+  public long purge() {
+    return purge(new Date(System.currentTimeMillis() - maxAgeMillis));
+  }
+
+  /**
+   * Purge the ApiCallLogs that are older than the given date
+   * 
+   * @param before
+   *          the (exclusive) upper bound of log_timestamp of the purged rows
+   * @return the number of purged rows
+   */
+  public long purge(Date before) {
+    synchronized (purgeLock) {
+      final Timestamp threshold = new Timestamp(before.getTime());
+      long start = System.currentTimeMillis();
+      long purged = 0;
+      int batchPurged;
+      do {
+        batchPurged = transactionTemplate.execute(new TransactionCallback<Integer>() {
+          @Override
+          public Integer doInTransaction(TransactionStatus status) {
+            return purgeBatch(threshold);
+          }
+        });
+        purged += batchPurged;
+      } while (batchPurged == batchSize && pause());
+      lastPurged = purged;
+      totalPurged.addAndGet(purged);
+      LOG.info("Purged {} ApiCallLogs older than {} in {} ms", new Object[] { purged, before,
+          System.currentTimeMillis() - start });
+      return purged;
+    }
+  }
+
+  private int purgeBatch(final Timestamp threshold) {
+    List<Long> ids = jdbcTemplate.query(new PreparedStatementCreator() {
+      @Override
+      public PreparedStatement createPreparedStatement(Connection con) throws SQLException {
+        PreparedStatement ps = con.prepareStatement("select id from api_call_log where log_timestamp < ?");
+        ps.setMaxRows(batchSize);
+        ps.setTimestamp(1, threshold);
+        return ps;
+      }
+    }, new SingleColumnRowMapper<Long>(Long.class));
+    if (ids.isEmpty()) {
+      return 0;
+    }
+    String inClause = " where id in (" + StringUtils.collectionToCommaDelimitedString(ids) + ")";
+    if (archiveTable != null) {
+      String columns = callCountColumn ? COLUMNS_WITH_COUNT : COLUMNS;
+      jdbcTemplate.update("insert into " + archiveTable + " (" + columns + ") select " + columns
+          + " from api_call_log" + inClause);
+    }
+    return jdbcTemplate.update("delete from api_call_log" + inClause);
+  }
+
+  /*
+   * Throttle between two batches, returns false if the purge should stop
+   */
+  private boolean pause() {
+    if (pauseMillis <= 0) {
+      return true;
+    }
+    try {
+      Thread.sleep(pauseMillis);
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * Purge periodically in a background thread
+   * 
+   * @param purgeIntervalMillis
+   *          the time between two purges, 0 or less to only purge on
+   *          {@link #purge()}
+   */
+  public synchronized void setPurgeIntervalMillis(long purgeIntervalMillis) {
+    if (purger != null) {
+      purger.shutdownNow();
+      purger = null;
+    }
+    if (purgeIntervalMillis <= 0) {
+      return;
+    }
+    purger = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "ApiCallLog-retention");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    purger.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          purge();
+        } catch (DataAccessException e) {
+          LOG.error("Could not purge ApiCallLogs, will retry on the next run", e);
+        }
+      }
+    }, purgeIntervalMillis, purgeIntervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stop the periodic purge, interrupting a running purge between two batches
+   */
+  @Override
+  public synchronized void destroy() {
+    if (purger != null) {
+      purger.shutdownNow();
+      purger = null;
+    }
+  }
+
+  /**
+   * @param maxAgeMillis
+   *          the age after which ApiCallLogs are purged, 90 days by default
+   */
+  public void setMaxAgeMillis(long maxAgeMillis) {
+    Assert.isTrue(maxAgeMillis > 0, "Max age must be positive");
+    this.maxAgeMillis = maxAgeMillis;
+  }
+
+  /**
+   * @param batchSize
+   *          the maximum number of rows purged in one transaction
+   */
+  public void setBatchSize(int batchSize) {
+    Assert.isTrue(batchSize > 0, "Batch size must be positive");
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * @param pauseMillis
+   *          the pause between two batches
+   */
+  public void setPauseMillis(long pauseMillis) {
+    this.pauseMillis = pauseMillis;
+  }
+
+  /**
+   * @param archiveTable
+   *          the table purged rows are copied to, {@literal null} (default) to
+   *          delete them without archiving
+   */
+  public void setArchiveTable(String archiveTable) {
+    Assert.isTrue(archiveTable == null || archiveTable.matches("[A-Za-z_][A-Za-z0-9_.]*"), "Invalid table name");
+    this.archiveTable = archiveTable;
+  }
+
+  /**
+   * @param callCountColumn
+   *          whether api_call_log has a call_count column (see
+   *          {@link ApiCallLogSchemaManager}) that is copied to the archive
+   *          table, so archived coalesced or sampled ApiCallLogs keep their
+   *          number of requests
+   */
+  public void setCallCountColumn(boolean callCountColumn) {
+    this.callCountColumn = callCountColumn;
+  }
+
+  /**
+   * @return the number of rows purged by the last run
+   */
+  public long getLastPurged() {
+    return lastPurged;
+  }
+
+  /**
+   * @return the number of rows purged by all runs
+   */
+  public long getTotalPurged() {
+    return totalPurged.get();
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfnet.coin.shared.log;
+
+import java.util.Date;
+
+/**
+ * The number of Api requests of a SP, consumer key and Api version in a time
+ * bucket, as maintained by the {@link ApiCallLogRollupService}
+ * 
+ */
+public class ApiCallLogRollup {
+
+  /**
+   * The size of a time bucket
+   */
+  public enum Granularity {
+    MINUTE(60L * 1000L), HOUR(60L * 60L * 1000L);
+
+    private final long millis;
+
+    private Granularity(long millis) {
+      this.millis = millis;
+    }
+
+    /**
+     * @param time
+     *          the time in millis
+     * @return the start of the bucket the time falls in
+     */
+    public long bucketStart(long time) {
+      return time - (time % millis);
+    }
+  }
+
+  private Granularity granularity;
+  private Date bucketStart;
+  private String spEntityId;
+  private String consumerKey;
+  private String apiVersion;
+  private long callCount;
+
+  /**
+   * @return the granularity
+   */
+  public Granularity getGranularity() {
+    return granularity;
+  }
+
+  /**
+   * @param granularity
+   *          the granularity to set
+   */
+  public void setGranularity(Granularity granularity) {
+    this.granularity = granularity;
+  }
+
+  /**
+   * @return the start of the time bucket, {@literal null} if the rollup is
+   *         summed over buckets
+   */
+  public Date getBucketStart() {
+    return bucketStart;
+  }
+
+  /**
+   * @param bucketStart
+   *          the bucketStart to set
+   */
+  public void setBucketStart(Date bucketStart) {
+    this.bucketStart = bucketStart;
+  }
+
+  /**
+   * @return the spEntityId
+   */
+  public String getSpEntityId() {
+    return spEntityId;
+  }
+
+  /**
+   * @param spEntityId
+   *          the spEntityId to set
+   */
+  public void setSpEntityId(String spEntityId) {
+    this.spEntityId = spEntityId;
+  }
+
+  /**
+   * @return the consumerKey, empty if the requests had none
+   */
+  public String getConsumerKey() {
+    return consumerKey;
+  }
+
+  /**
+   * @param consumerKey
+   *          the consumerKey to set
+   */
+  public void setConsumerKey(String consumerKey) {
+    this.consumerKey = consumerKey;
+  }
+
+  /**
+   * @return the apiVersion, empty if the requests had none or the rollup is
+   *         summed over Api versions
+   */
+  public String getApiVersion() {
+    return apiVersion;
+  }
+
+  /**
+   * @param apiVersion
+   *          the apiVersion to set
+   */
+  public void setApiVersion(String apiVersion) {
+    this.apiVersion = apiVersion;
+  }
+
+  /**
+   * @return the number of requests
+   */
+  public long getCallCount() {
+    return callCount;
+  }
+
+  /**
+   * @param callCount
+   *          the callCount to set
+   */
+  public void setCallCount(long callCount) {
+    this.callCount = callCount;
+  }
+
+}
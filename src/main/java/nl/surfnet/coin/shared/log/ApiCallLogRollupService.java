@@ -0,0 +1,417 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfnet.coin.shared.log;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.sql.DataSource;
+
+import nl.surfnet.coin.shared.log.ApiCallLogRollup.Granularity;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.Assert;
+
+/**
+ * Pre-aggregated counts of Api requests per SP, consumer key, Api version and
+ * minute / hour, so reporting does not have to count the raw api_call_log
+ * rows. Requests are counted in memory and the counts are periodically added
+ * to the api_call_log_rollup table:
+ * 
+ * <pre>
+ * create table api_call_log_rollup (
+ *   granularity varchar(6) not null,
+ *   bucket_start timestamp not null,
+ *   spentity_id varchar(255) not null,
+ *   consumer_key varchar(255) not null,
+ *   api_version varchar(255) not null,
+ *   call_count bigint not null,
+ *   primary key (granularity, bucket_start, spentity_id, consumer_key, api_version)
+ * );
+ * </pre>
+ * 
+ * Missing consumer keys and Api versions are stored as empty strings, so they
+ * can be part of the primary key. Counts that have not been flushed yet are
+ * not returned by the queries.
+ * 
+ */
+public class ApiCallLogRollupService implements DisposableBean {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ApiCallLogRollupService.class);
+
+  private static final String ROLLUP_COLUMNS = "granularity, bucket_start, spentity_id, consumer_key, api_version, call_count";
+
+  private static final String UPDATE_ROLLUP = "update api_call_log_rollup set call_count = call_count + ? "
+      + "where granularity = ? and bucket_start = ? and spentity_id = ? and consumer_key = ? and api_version = ?";
+
+  private static final String INSERT_ROLLUP = "insert into api_call_log_rollup (" + ROLLUP_COLUMNS
+      + ") values (?, ?, ?, ?, ?, ?)";
+
+  private static final RowMapper<ApiCallLogRollup> ROLLUP_MAPPER = new RowMapper<ApiCallLogRollup>() {
+
+    @Override
+    public ApiCallLogRollup mapRow(ResultSet rs, int rowNum) throws SQLException {
+      ApiCallLogRollup rollup = new ApiCallLogRollup();
+      rollup.setGranularity(Granularity.valueOf(rs.getString("granularity")));
+      rollup.setBucketStart(rs.getTimestamp("bucket_start"));
+      rollup.setSpEntityId(rs.getString("spentity_id"));
+      rollup.setConsumerKey(rs.getString("consumer_key"));
+      rollup.setApiVersion(rs.getString("api_version"));
+      rollup.setCallCount(rs.getLong("call_count"));
+      return rollup;
+    }
+  };
+
+  private final JdbcTemplate jdbcTemplate;
+  private final TransactionTemplate transactionTemplate;
+
+  /*
+   * Recording takes the read lock, so requests are counted concurrently. Only
+   * the swap of the counters on flush takes the write lock.
+   */
+  private final ReadWriteLock swapLock = new ReentrantReadWriteLock();
+  private ConcurrentMap<BucketKey, AtomicLong> counters = new ConcurrentHashMap<BucketKey, AtomicLong>();
+
+  private ScheduledExecutorService flusher;
+
+  public ApiCallLogRollupService(DataSource dataSource) {
+    jdbcTemplate = new JdbcTemplate(dataSource);
+    transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+  }
+
+  public ApiCallLogRollupService(JdbcTemplate template) {
+    jdbcTemplate = template;
+    transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(template.getDataSource()));
+  }
+
+  /**
+   * Count an Api request in its minute and hour bucket
+   * 
+   * @param log
+   *          the ApiCallLog of the request, without timestamp it is counted
+   *          now. Coalesced logs count for their call count.
+   */
+  public void record(ApiCallLog log) {
+    long time = log.getTimestamp() == null ? System.currentTimeMillis() : log.getTimestamp().getTime();
+    swapLock.readLock().lock();
+    try {
+      for (Granularity granularity : Granularity.values()) {
+        BucketKey key = new BucketKey(granularity, granularity.bucketStart(time), log.getSpEntityId(),
+            log.getConsumerKey(), log.getApiVersion());
+        AtomicLong counter = counters.get(key);
+        if (counter == null) {
+          AtomicLong newCounter = new AtomicLong();
+          counter = counters.putIfAbsent(key, newCounter);
+          if (counter == null) {
+            counter = newCounter;
+          }
+        }
+        counter.addAndGet(log.getCallCount());
+      }
+    } finally {
+      swapLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Add the counts recorded since the previous flush to the rollup table. The
+   * counts are written in one transaction, so if they can not be written none
+   * of them is and they are all kept for the next flush.
+   */
+  public void flush() {
+    Map<BucketKey, AtomicLong> pending;
+    swapLock.writeLock().lock();
+    try {
+      if (counters.isEmpty()) {
+        return;
+      }
+      pending = counters;
+      counters = new ConcurrentHashMap<BucketKey, AtomicLong>();
+    } finally {
+      swapLock.writeLock().unlock();
+    }
+    try {
+      try {
+        write(pending, true);
+      } catch (DataIntegrityViolationException e) {
+        /*
+         * Another node inserted one of the buckets in the meantime, or the
+         * driver did not report the updated rows of the batch. Nothing has
+         * been committed, so write again with the exact count of each update.
+         */
+        write(pending, false);
+      }
+    } catch (DataAccessException e) {
+      LOG.error("Could not flush " + pending.size() + " ApiCallLog rollups, will retry on the next flush", e);
+      restore(pending);
+    }
+  }
+
+  private void write(final Map<BucketKey, AtomicLong> pending, final boolean batch) {
+    transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+      @Override
+      protected void doInTransactionWithoutResult(TransactionStatus status) {
+        List<BucketKey> keys = new ArrayList<BucketKey>(pending.keySet());
+        int[] updated = update(keys, pending, batch);
+        for (int i = 0; i < keys.size(); i++) {
+          // anything but a row count, like SUCCESS_NO_INFO, can not be trusted
+          if (updated[i] <= 0) {
+            // first flush of this bucket, which is rare enough to insert one by one
+            BucketKey key = keys.get(i);
+            jdbcTemplate.update(INSERT_ROLLUP, new Object[] { key.granularity.name(), new Timestamp(key.bucketStart),
+                key.spEntityId, key.consumerKey, key.apiVersion, pending.get(key).get() });
+          }
+        }
+      }
+    });
+  }
+
+  private int[] update(List<BucketKey> keys, Map<BucketKey, AtomicLong> pending, boolean batch) {
+    if (batch) {
+      List<Object[]> updateArgs = new ArrayList<Object[]>(keys.size());
+      for (BucketKey key : keys) {
+        updateArgs.add(updateArgs(key, pending.get(key).get()));
+      }
+      return jdbcTemplate.batchUpdate(UPDATE_ROLLUP, updateArgs);
+    }
+    int[] updated = new int[keys.size()];
+    for (int i = 0; i < keys.size(); i++) {
+      updated[i] = jdbcTemplate.update(UPDATE_ROLLUP, updateArgs(keys.get(i), pending.get(keys.get(i)).get()));
+    }
+    return updated;
+  }
+
+  private Object[] updateArgs(BucketKey key, long count) {
+    return new Object[] { count, key.granularity.name(), new Timestamp(key.bucketStart), key.spEntityId,
+        key.consumerKey, key.apiVersion };
+  }
+
+  private void restore(Map<BucketKey, AtomicLong> pending) {
+    swapLock.readLock().lock();
+    try {
+      for (Map.Entry<BucketKey, AtomicLong> entry : pending.entrySet()) {
+        AtomicLong counter = counters.putIfAbsent(entry.getKey(), entry.getValue());
+        if (counter != null) {
+          counter.addAndGet(entry.getValue().get());
+        }
+      }
+    } finally {
+      swapLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @param serviceProvider
+   *          the entityid of the serviceProvider
+   * @param granularity
+   *          the size of the time buckets
+   * @param from
+   *          the start of the time range (inclusive)
+   * @param to
+   *          the end of the time range (exclusive)
+   * @return the rollups of the SP per bucket, consumer key and Api version,
+   *         ordered by bucket
+   */
+  public List<ApiCallLogRollup> findRollups(String serviceProvider, Granularity granularity, Date from, Date to) {
+    return jdbcTemplate.query("select " + ROLLUP_COLUMNS + " from api_call_log_rollup "
+        + "where granularity = ? and spentity_id = ? and bucket_start >= ? and bucket_start < ? "
+        + "order by bucket_start, consumer_key, api_version", new Object[] { granularity.name(), serviceProvider,
+        new Timestamp(from.getTime()), new Timestamp(to.getTime()) }, ROLLUP_MAPPER);
+  }
+
+  /**
+   * @param serviceProvider
+   *          the entityid of the serviceProvider
+   * @param granularity
+   *          the size of the time buckets
+   * @param from
+   *          the start of the time range (inclusive)
+   * @param to
+   *          the end of the time range (exclusive)
+   * @return the number of requests of the SP per bucket, summed over consumer
+   *         keys and Api versions and ordered by bucket
+   */
+  public List<ApiCallLogRollup> findCallCounts(String serviceProvider, final Granularity granularity, Date from,
+      Date to) {
+    return jdbcTemplate.query("select bucket_start, spentity_id, sum(call_count) as call_count "
+        + "from api_call_log_rollup where granularity = ? and spentity_id = ? and bucket_start >= ? "
+        + "and bucket_start < ? group by bucket_start, spentity_id order by bucket_start", new Object[] {
+        granularity.name(), serviceProvider, new Timestamp(from.getTime()), new Timestamp(to.getTime()) },
+        new RowMapper<ApiCallLogRollup>() {
+          @Override
+          public ApiCallLogRollup mapRow(ResultSet rs, int rowNum) throws SQLException {
+            ApiCallLogRollup rollup = new ApiCallLogRollup();
+            rollup.setGranularity(granularity);
+            rollup.setBucketStart(rs.getTimestamp("bucket_start"));
+            rollup.setSpEntityId(rs.getString("spentity_id"));
+            rollup.setCallCount(rs.getLong("call_count"));
+            return rollup;
+          }
+        });
+  }
+
+  /**
+   * @param granularity
+   *          the granularity of the buckets that are summed, HOUR is cheaper
+   *          for longer time ranges
+   * @param from
+   *          the start of the time range (inclusive)
+   * @param to
+   *          the end of the time range (exclusive)
+   * @param max
+   *          the maximum number of consumer keys to return
+   * @return the consumer keys with the most requests in the time range, with
+   *         their SP and number of requests
+   */
+  public List<ApiCallLogRollup> findTopConsumerKeys(Granularity granularity, Date from, Date to, final int max) {
+    Assert.isTrue(max > 0, "Max must be positive");
+    final Object[] args = new Object[] { granularity.name(), new Timestamp(from.getTime()),
+        new Timestamp(to.getTime()) };
+    return jdbcTemplate.query(new PreparedStatementCreator() {
+      @Override
+      public PreparedStatement createPreparedStatement(Connection con) throws SQLException {
+        PreparedStatement ps = con.prepareStatement("select spentity_id, consumer_key, sum(call_count) as call_count "
+            + "from api_call_log_rollup where granularity = ? and bucket_start >= ? and bucket_start < ? "
+            + "group by spentity_id, consumer_key order by sum(call_count) desc");
+        ps.setMaxRows(max);
+        for (int i = 0; i < args.length; i++) {
+          ps.setObject(i + 1, args[i]);
+        }
+        return ps;
+      }
+    }, new RowMapper<ApiCallLogRollup>() {
+      @Override
+      public ApiCallLogRollup mapRow(ResultSet rs, int rowNum) throws SQLException {
+        ApiCallLogRollup rollup = new ApiCallLogRollup();
+        rollup.setSpEntityId(rs.getString("spentity_id"));
+        rollup.setConsumerKey(rs.getString("consumer_key"));
+        rollup.setCallCount(rs.getLong("call_count"));
+        return rollup;
+      }
+    });
+  }
+
+  /**
+   * Flush the counts periodically in a background thread
+   * 
+   * @param flushIntervalMillis
+   *          the time between two flushes, 0 or less to only flush on
+   *          {@link #flush()} and {@link #destroy()}
+   */
+  public synchronized void setFlushIntervalMillis(long flushIntervalMillis) {
+    if (flusher != null) {
+      flusher.shutdown();
+      flusher = null;
+    }
+    if (flushIntervalMillis <= 0) {
+      return;
+    }
+    flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "ApiCallLog-rollup-flusher");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    flusher.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        flush();
+      }
+    }, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stop the periodic flush and write the remaining counts
+   */
+  @Override
+  public synchronized void destroy() throws InterruptedException {
+    if (flusher != null) {
+      flusher.shutdown();
+      flusher.awaitTermination(1, TimeUnit.MINUTES);
+      flusher = null;
+    }
+    flush();
+  }
+
+  private static final class BucketKey {
+    private final Granularity granularity;
+    private final long bucketStart;
+    private final String spEntityId;
+    private final String consumerKey;
+    private final String apiVersion;
+
+    private BucketKey(Granularity granularity, long bucketStart, String spEntityId, String consumerKey,
+        String apiVersion) {
+      this.granularity = granularity;
+      this.bucketStart = bucketStart;
+      this.spEntityId = spEntityId == null ? "" : spEntityId;
+      this.consumerKey = consumerKey == null ? "" : consumerKey;
+      this.apiVersion = apiVersion == null ? "" : apiVersion;
+    }
+
+    @Override
+    public int hashCode() {
+      int result = granularity.hashCode();
+      result = 31 * result + (int) (bucketStart ^ (bucketStart >>> 32));
+      result = 31 * result + spEntityId.hashCode();
+      result = 31 * result + consumerKey.hashCode();
+      return 31 * result + apiVersion.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof BucketKey)) {
+        return false;
+      }
+      BucketKey other = (BucketKey) obj;
+      return granularity == other.granularity && bucketStart == other.bucketStart
+          && spEntityId.equals(other.spEntityId) && consumerKey.equals(other.consumerKey)
+          && apiVersion.equals(other.apiVersion);
+    }
+  }
+}
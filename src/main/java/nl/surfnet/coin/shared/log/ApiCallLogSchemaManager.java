@@ -0,0 +1,285 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfnet.coin.shared.log;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.support.JdbcUtils;
+import org.springframework.util.StringUtils;
+
+/**
+ * Verifies, and optionally creates, the indexes the queries of
+ * {@link ApiCallLogServiceImpl} and {@link ApiCallLogRetentionService} rely
+ * on:
+ * <ul>
+ * <li>idx_api_call_log_sp_ts on (spentity_id, log_timestamp) for the queries
+ * per SP and time range</li>
+ * <li>idx_api_call_log_consumer_key on (consumer_key) for the queries per
+ * consumer key</li>
+ * <li>idx_api_call_log_ts on (log_timestamp) for the retention purge</li>
+ * </ul>
+ * An existing index whose leading columns match is accepted as well. By
+ * default missing indexes are only reported on startup: creating an index on
+ * a large api_call_log table can lock it for a long time, so it is an explicit
+ * opt-in (see {@link #setCreateMissingIndexes(boolean)}). Indexed
+ * columns wider than {@value #MAX_INDEXED_COLUMN_SIZE} characters are
+ * reported, as they exceed the index key limits of e.g. MySQL InnoDB. The
+ * recommended sizes are varchar(255) for spentity_id, consumer_key and
+ * user_id, varchar(45) for ip_address and varchar(32) for api_version.
+ * <p>
+ * Optionally the call_count column, which stores the number of requests of
+ * coalesced ApiCallLogs (see {@link CoalescingApiCallLogService}), is added
+ * as well.
+ * 
+ */
+public class ApiCallLogSchemaManager implements InitializingBean {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ApiCallLogSchemaManager.class);
+
+  public static final int MAX_INDEXED_COLUMN_SIZE = 255;
+
+  private static final String TABLE = "api_call_log";
+
+  private static final Map<String, List<String>> INDEXES = new LinkedHashMap<String, List<String>>();
+
+  static {
+    INDEXES.put("idx_api_call_log_sp_ts", Arrays.asList("spentity_id", "log_timestamp"));
+    INDEXES.put("idx_api_call_log_consumer_key", Arrays.asList("consumer_key"));
+    INDEXES.put("idx_api_call_log_ts", Arrays.asList("log_timestamp"));
+  }
+
+  private final JdbcTemplate jdbcTemplate;
+
+  private boolean createMissingIndexes;
+  private boolean createCallCountColumn;
+
+  public ApiCallLogSchemaManager(DataSource dataSource) {
+    jdbcTemplate = new JdbcTemplate(dataSource);
+  }
+
+  public ApiCallLogSchemaManager(JdbcTemplate template) {
+    jdbcTemplate = template;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see org.springframework.beans.factory.InitializingBean#afterPropertiesSet()
+   */
+  @Override
+  public void afterPropertiesSet() {
+    if (createCallCountColumn && !hasCallCountColumn()) {
+      createCallCountColumn();
+    }
+    if (createMissingIndexes) {
+      createMissingIndexes();
+    } else {
+      List<String> missing = findMissingIndexes();
+      if (!missing.isEmpty()) {
+        LOG.warn("Missing indexes on {}: {}", TABLE, missing);
+      }
+    }
+    List<String> oversized = findOversizedColumns();
+    if (!oversized.isEmpty()) {
+      LOG.warn("Indexed columns of {} wider than {} characters: {}", new Object[] { TABLE,
+          MAX_INDEXED_COLUMN_SIZE, oversized });
+    }
+  }
+
+  /**
+   * @return the names of the required indexes that are not covered by an
+   *         existing index
+   */
+  public List<String> findMissingIndexes() {
+    Collection<List<String>> existing = findIndexColumns().values();
+    List<String> missing = new ArrayList<String>();
+    for (Map.Entry<String, List<String>> index : INDEXES.entrySet()) {
+      if (!isCovered(index.getValue(), existing)) {
+        missing.add(index.getKey());
+      }
+    }
+    return missing;
+  }
+
+  /**
+   * Create the required indexes that are not covered by an existing index
+   * 
+   * @return the names of the created indexes
+   */
+  public List<String> createMissingIndexes() {
+    List<String> missing = findMissingIndexes();
+    for (String name : missing) {
+      String ddl = "create index " + name + " on " + TABLE + " ("
+          + StringUtils.collectionToCommaDelimitedString(INDEXES.get(name)) + ")";
+      LOG.info("Creating index: {}", ddl);
+      jdbcTemplate.execute(ddl);
+    }
+    return missing;
+  }
+
+  /**
+   * @return the indexed columns that are wider than
+   *         {@link #MAX_INDEXED_COLUMN_SIZE}
+   */
+  public List<String> findOversizedColumns() {
+    final List<String> indexed = new ArrayList<String>();
+    for (List<String> columns : INDEXES.values()) {
+      indexed.addAll(columns);
+    }
+    return jdbcTemplate.execute(new ConnectionCallback<List<String>>() {
+      @Override
+      public List<String> doInConnection(Connection con) throws SQLException, DataAccessException {
+        DatabaseMetaData metaData = con.getMetaData();
+        List<String> oversized = new ArrayList<String>();
+        ResultSet rs = metaData.getColumns(null, null, tableName(metaData), null);
+        try {
+          while (rs.next()) {
+            String column = rs.getString("COLUMN_NAME").toLowerCase(Locale.ENGLISH);
+            int type = rs.getInt("DATA_TYPE");
+            boolean character = type == Types.VARCHAR || type == Types.CHAR
+                || type == Types.NVARCHAR || type == Types.NCHAR;
+            if (character && indexed.contains(column) && rs.getInt("COLUMN_SIZE") > MAX_INDEXED_COLUMN_SIZE) {
+              oversized.add(column);
+            }
+          }
+        } finally {
+          JdbcUtils.closeResultSet(rs);
+        }
+        return oversized;
+      }
+    });
+  }
+
+  /**
+   * @return whether api_call_log has the call_count column
+   */
+  public boolean hasCallCountColumn() {
+    return jdbcTemplate.execute(new ConnectionCallback<Boolean>() {
+      @Override
+      public Boolean doInConnection(Connection con) throws SQLException, DataAccessException {
+        DatabaseMetaData metaData = con.getMetaData();
+        String column = metaData.storesUpperCaseIdentifiers() ? "CALL_COUNT" : "call_count";
+        ResultSet rs = metaData.getColumns(null, null, tableName(metaData), column);
+        try {
+          return rs.next();
+        } finally {
+          JdbcUtils.closeResultSet(rs);
+        }
+      }
+    });
+  }
+
+  /**
+   * Add the call_count column to api_call_log, existing rows count as one
+   * request
+   */
+  public void createCallCountColumn() {
+    String ddl = "alter table " + TABLE + " add column call_count int default 1 not null";
+    LOG.info("Creating column: {}", ddl);
+    jdbcTemplate.execute(ddl);
+  }
+
+  /*
+   * The columns of the existing indexes per index name, in index order
+   */
+  private Map<String, List<String>> findIndexColumns() {
+    return jdbcTemplate.execute(new ConnectionCallback<Map<String, List<String>>>() {
+      @Override
+      public Map<String, List<String>> doInConnection(Connection con) throws SQLException, DataAccessException {
+        DatabaseMetaData metaData = con.getMetaData();
+        Map<String, Map<Short, String>> positions = new HashMap<String, Map<Short, String>>();
+        ResultSet rs = metaData.getIndexInfo(null, null, tableName(metaData), false, true);
+        try {
+          while (rs.next()) {
+            String indexName = rs.getString("INDEX_NAME");
+            String column = rs.getString("COLUMN_NAME");
+            if (indexName == null || column == null) {
+              continue;
+            }
+            Map<Short, String> columns = positions.get(indexName);
+            if (columns == null) {
+              columns = new TreeMap<Short, String>();
+              positions.put(indexName, columns);
+            }
+            columns.put(rs.getShort("ORDINAL_POSITION"), column.toLowerCase(Locale.ENGLISH));
+          }
+        } finally {
+          JdbcUtils.closeResultSet(rs);
+        }
+        Map<String, List<String>> indexes = new HashMap<String, List<String>>();
+        for (Map.Entry<String, Map<Short, String>> index : positions.entrySet()) {
+          indexes.put(index.getKey(), new ArrayList<String>(index.getValue().values()));
+        }
+        return indexes;
+      }
+    });
+  }
+
+  private boolean isCovered(List<String> required, Collection<List<String>> existing) {
+    for (List<String> columns : existing) {
+      if (columns.size() >= required.size() && columns.subList(0, required.size()).equals(required)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private String tableName(DatabaseMetaData metaData) throws SQLException {
+    if (metaData.storesUpperCaseIdentifiers()) {
+      return TABLE.toUpperCase(Locale.ENGLISH);
+    }
+    return metaData.storesLowerCaseIdentifiers() ? TABLE.toLowerCase(Locale.ENGLISH) : TABLE;
+  }
+
+  /**
+   * @param createMissingIndexes
+   *          whether missing indexes are created on startup or only reported
+   *          (default)
+   */
+  public void setCreateMissingIndexes(boolean createMissingIndexes) {
+    this.createMissingIndexes = createMissingIndexes;
+  }
+
+  /**
+   * @param createCallCountColumn
+   *          whether the call_count column is added on startup if it is
+   *          missing, default false
+   */
+  public void setCreateCallCountColumn(boolean createCallCountColumn) {
+    this.createCallCountColumn = createCallCountColumn;
+  }
+}
@@ -15,23 +15,85 @@
  */
 package nl.surfnet.coin.shared.log;
 
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.sql.DataSource;
 
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.RowMapper;
+import org.springframework.util.Assert;
 
 /**
  * JDBC implementation for ApiCallLogService
  * 
  */
-public class ApiCallLogServiceImpl implements ApiCallLogService {
+public class ApiCallLogServiceImpl implements BatchApiCallLogService, TimeRangeApiCallLogService {
+
+  private static final String SELECT_API_CALL_LOG = "select id, user_id, spentity_id, ip_address, api_version, resource_url, consumer_key, log_timestamp from api_call_log";
+
+  private static final String SELECT_API_CALL_LOG_WITH_COUNT = "select id, user_id, spentity_id, ip_address, api_version, resource_url, consumer_key, log_timestamp, call_count from api_call_log";
+
+  private static final RowMapper<ApiCallLog> API_CALL_LOG_MAPPER = new ApiCallLogMapper(false);
+
+  private static final RowMapper<ApiCallLog> API_CALL_LOG_WITH_COUNT_MAPPER = new ApiCallLogMapper(true);
+
+  private static class ApiCallLogMapper implements RowMapper<ApiCallLog> {
+    private final boolean callCountColumn;
+
+    private ApiCallLogMapper(boolean callCountColumn) {
+      this.callCountColumn = callCountColumn;
+    }
+
+    @Override
+    public ApiCallLog mapRow(ResultSet rs, int rowNum) throws SQLException {
+      ApiCallLog log = new ApiCallLog();
+      log.setId(rs.getLong("id"));
+      log.setApiVersion(rs.getString("api_version"));
+      log.setConsumerKey(rs.getString("consumer_key"));
+      log.setIpAddress(rs.getString("ip_address"));
+      log.setResourceUrl(rs.getString("resource_url"));
+      log.setSpEntityId(rs.getString("spentity_id"));
+      log.setTimestamp(rs.getTimestamp("log_timestamp"));
+      log.setUserId(rs.getString("user_id"));
+      if (callCountColumn) {
+        log.setCallCount(rs.getInt("call_count"));
+      }
+      return log;
+    }
+  }
 
   private JdbcTemplate jdbcTemplate;
 
+  private static final int DEFAULT_STREAMING_FETCH_SIZE = 1000;
+
+  private Integer streamingFetchSize;
+
+  private boolean callCountColumn;
+
+  private ApiCallLogRollupService rollupService;
+
+  /*
+   * The distinct spentity_id's, seeded from the table on first use and kept up
+   * to date on save
+   */
+  private volatile Set<String> serviceProviders;
+  private volatile Set<String> seedingServiceProviders;
+  private volatile long serviceProvidersSeeded;
+  private long serviceProviderRefreshMillis;
+
   public ApiCallLogServiceImpl(DataSource dataSource) {
     jdbcTemplate = new JdbcTemplate(dataSource);
   }
@@ -49,12 +111,92 @@ public class ApiCallLogServiceImpl implements ApiCallLogService {
    */
   @Override
   public void saveApiCallLog(ApiCallLog log) {
-    Object[] args = new Object[] { log.getUserId(), log.getSpEntityId(), log.getIpAddress(), log.getApiVersion(),
-        log.getResourceUrl(), log.getConsumerKey() };
-    jdbcTemplate
-        .update(
-            "INSERT INTO api_call_log (user_id, spentity_id, ip_address, api_version, resource_url, consumer_key) VALUES  (?, ?, ?, ?, ?, ?)",
-            args);
+    if (callCountColumn) {
+      saveApiCallLogs(Collections.singletonList(log));
+      return;
+    }
+    if (log.getTimestamp() != null) {
+      // the time of the request, which may have been some time ago for queued logs
+      jdbcTemplate
+          .update(
+              "INSERT INTO api_call_log (user_id, spentity_id, ip_address, api_version, resource_url, consumer_key, log_timestamp) VALUES  (?, ?, ?, ?, ?, ?, ?)",
+              new Object[] { log.getUserId(), log.getSpEntityId(), log.getIpAddress(), log.getApiVersion(),
+                  log.getResourceUrl(), log.getConsumerKey(), timestamp(log.getTimestamp()) });
+    } else {
+      jdbcTemplate
+          .update(
+              "INSERT INTO api_call_log (user_id, spentity_id, ip_address, api_version, resource_url, consumer_key) VALUES  (?, ?, ?, ?, ?, ?)",
+              new Object[] { log.getUserId(), log.getSpEntityId(), log.getIpAddress(), log.getApiVersion(),
+                  log.getResourceUrl(), log.getConsumerKey() });
+    }
+    addServiceProvider(log.getSpEntityId());
+    if (rollupService != null) {
+      rollupService.record(log);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * nl.surfnet.coin.shared.log.BatchApiCallLogService#saveApiCallLogs(java.util.List)
+   */
+  @Override
+  public void saveApiCallLogs(List<ApiCallLog> logs) {
+    if (logs.isEmpty()) {
+      return;
+    }
+    List<Object[]> batchArgs = new ArrayList<Object[]>(logs.size());
+    for (ApiCallLog log : logs) {
+      // the logs may have been queued for a while, so do not rely on the default value of log_timestamp
+      Timestamp timestamp = log.getTimestamp() == null ? new Timestamp(System.currentTimeMillis()) : timestamp(log
+          .getTimestamp());
+      if (callCountColumn) {
+        batchArgs.add(new Object[] { log.getUserId(), log.getSpEntityId(), log.getIpAddress(), log.getApiVersion(),
+            log.getResourceUrl(), log.getConsumerKey(), timestamp, log.getCallCount() });
+      } else {
+        batchArgs.add(new Object[] { log.getUserId(), log.getSpEntityId(), log.getIpAddress(), log.getApiVersion(),
+            log.getResourceUrl(), log.getConsumerKey(), timestamp });
+      }
+    }
+    if (callCountColumn) {
+      jdbcTemplate
+          .batchUpdate(
+              "INSERT INTO api_call_log (user_id, spentity_id, ip_address, api_version, resource_url, consumer_key, log_timestamp, call_count) VALUES  (?, ?, ?, ?, ?, ?, ?, ?)",
+              batchArgs);
+    } else {
+      jdbcTemplate
+          .batchUpdate(
+              "INSERT INTO api_call_log (user_id, spentity_id, ip_address, api_version, resource_url, consumer_key, log_timestamp) VALUES  (?, ?, ?, ?, ?, ?, ?)",
+              batchArgs);
+    }
+    for (ApiCallLog log : logs) {
+      addServiceProvider(log.getSpEntityId());
+      if (rollupService != null) {
+        rollupService.record(log);
+      }
+    }
+  }
+
+  /*
+   * A Timestamp is passed on as is, converting it would lose its nanoseconds
+   */
+  private static Timestamp timestamp(Date date) {
+    return date instanceof Timestamp ? (Timestamp) date : new Timestamp(date.getTime());
+  }
+
+  private void addServiceProvider(String serviceProvider) {
+    if (serviceProvider == null) {
+      return;
+    }
+    Set<String> current = serviceProviders;
+    if (current != null) {
+      current.add(serviceProvider);
+    }
+    Set<String> seeding = seedingServiceProviders;
+    if (seeding != null) {
+      seeding.add(serviceProvider);
+    }
   }
 
   /*
@@ -66,24 +208,171 @@ public class ApiCallLogServiceImpl implements ApiCallLogService {
    */
   @Override
   public List<ApiCallLog> findApiCallLog(String serviceProvider) {
-    return jdbcTemplate
-        .query(
-            "select user_id, spentity_id, ip_address, api_version, resource_url, consumer_key, log_timestamp from api_call_log where spentity_id = ?",
-            new String[] { serviceProvider }, new RowMapper<ApiCallLog>() {
-
-              @Override
-              public ApiCallLog mapRow(ResultSet rs, int rowNum) throws SQLException {
-                ApiCallLog log = new ApiCallLog();
-                log.setApiVersion(rs.getString("api_version"));
-                log.setConsumerKey(rs.getString("consumer_key"));
-                log.setIpAddress(rs.getString("ip_address"));
-                log.setResourceUrl(rs.getString("resource_url"));
-                log.setSpEntityId(rs.getString("spentity_id"));
-                log.setTimestamp(rs.getDate("log_timestamp"));
-                log.setUserId(rs.getString("user_id"));
-                return log;
-              }
-            });
+    return jdbcTemplate.query(selectApiCallLog() + " where spentity_id = ?", new String[] { serviceProvider },
+        mapper());
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * nl.surfnet.coin.shared.log.TimeRangeApiCallLogService#findApiCallLog(java.lang.String
+   * , java.util.Date, java.util.Date, nl.surfnet.coin.shared.log.ApiCallLog,
+   * int)
+   */
+  @Override
+  public List<ApiCallLog> findApiCallLog(String serviceProvider, Date from, Date to, ApiCallLog after,
+      final int pageSize) {
+    Assert.isTrue(pageSize > 0, "Page size must be positive");
+    List<Object> args = new ArrayList<Object>();
+    StringBuilder sql = new StringBuilder(selectApiCallLog());
+    appendTimeRange(sql, args, serviceProvider, from, to);
+    if (after != null) {
+      Assert.isTrue(after.getId() != null && after.getTimestamp() != null, "Cursor must have an id and a timestamp");
+      Timestamp afterTimestamp = timestamp(after.getTimestamp());
+      sql.append(" and (log_timestamp > ? or (log_timestamp = ? and id > ?))");
+      args.add(afterTimestamp);
+      args.add(afterTimestamp);
+      args.add(after.getId());
+    }
+    sql.append(" order by log_timestamp, id");
+    // maxRows instead of a LIMIT clause, as the latter is not portable
+    return jdbcTemplate.query(new TimeRangeStatementCreator(sql.toString(), args, pageSize, null, false), mapper());
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * nl.surfnet.coin.shared.log.TimeRangeApiCallLogService#findApiCallLog(java.lang.String
+   * , java.util.Date, java.util.Date,
+   * nl.surfnet.coin.shared.log.ApiCallLogCallback)
+   */
+  @Override
+  public void findApiCallLog(String serviceProvider, Date from, Date to, final ApiCallLogCallback callback) {
+    final RowMapper<ApiCallLog> mapper = mapper();
+    List<Object> args = new ArrayList<Object>();
+    StringBuilder sql = new StringBuilder(selectApiCallLog());
+    appendTimeRange(sql, args, serviceProvider, from, to);
+    sql.append(" order by log_timestamp, id");
+    jdbcTemplate.query(new TimeRangeStatementCreator(sql.toString(), args, 0, streamingFetchSize, true),
+        new RowCallbackHandler() {
+          private int rowNum;
+
+          @Override
+          public void processRow(ResultSet rs) throws SQLException {
+            callback.processApiCallLog(mapper.mapRow(rs, rowNum++));
+          }
+        });
+  }
+
+  private String selectApiCallLog() {
+    return callCountColumn ? SELECT_API_CALL_LOG_WITH_COUNT : SELECT_API_CALL_LOG;
+  }
+
+  private RowMapper<ApiCallLog> mapper() {
+    return callCountColumn ? API_CALL_LOG_WITH_COUNT_MAPPER : API_CALL_LOG_MAPPER;
+  }
+
+  private void appendTimeRange(StringBuilder sql, List<Object> args, String serviceProvider, Date from, Date to) {
+    sql.append(" where spentity_id = ?");
+    args.add(serviceProvider);
+    if (from != null) {
+      sql.append(" and log_timestamp >= ?");
+      args.add(timestamp(from));
+    }
+    if (to != null) {
+      sql.append(" and log_timestamp < ?");
+      args.add(timestamp(to));
+    }
+  }
+
+  /**
+   * @param streamingFetchSize
+   *          the JDBC fetch size used when streaming ApiCallLogs to a
+   *          callback. By default it is Integer.MIN_VALUE on MySQL, as
+   *          Connector/J reads the whole result set in memory with any other
+   *          fetch size unless the connection URL has
+   *          <code>useCursorFetch=true</code>, and 1000 otherwise.
+   */
+  public void setStreamingFetchSize(Integer streamingFetchSize) {
+    this.streamingFetchSize = streamingFetchSize;
+  }
+
+  /*
+   * The fetch size that streams the rows with the given database
+   */
+  static int defaultStreamingFetchSize(String databaseProductName, String url) {
+    if ("MySQL".equalsIgnoreCase(databaseProductName)
+        && (url == null || !url.toLowerCase().contains("usecursorfetch=true"))) {
+      return Integer.MIN_VALUE;
+    }
+    return DEFAULT_STREAMING_FETCH_SIZE;
+  }
+
+  /**
+   * @param callCountColumn
+   *          whether api_call_log has a call_count column (see
+   *          {@link ApiCallLogSchemaManager}) that stores the number of requests
+   *          of coalesced or sampled ApiCallLogs. Without it every ApiCallLog
+   *          is stored as a single request.
+   */
+  public void setCallCountColumn(boolean callCountColumn) {
+    this.callCountColumn = callCountColumn;
+  }
+
+  /**
+   * @return whether the call count of the ApiCallLogs is stored
+   */
+  public boolean isCallCountColumn() {
+    return callCountColumn;
+  }
+
+  /**
+   * @param rollupService
+   *          the service that counts the saved ApiCallLogs for reporting,
+   *          {@literal null} to not maintain rollups
+   */
+  public void setRollupService(ApiCallLogRollupService rollupService) {
+    this.rollupService = rollupService;
+  }
+
+  /*
+   * Forward-only, read-only statement with optional maxRows, and when streaming
+   * the given fetch size or the default one of the database
+   */
+  private static class TimeRangeStatementCreator implements PreparedStatementCreator {
+    private final String sql;
+    private final List<Object> args;
+    private final int maxRows;
+    private final Integer fetchSize;
+    private final boolean streaming;
+
+    private TimeRangeStatementCreator(String sql, List<Object> args, int maxRows, Integer fetchSize,
+        boolean streaming) {
+      this.sql = sql;
+      this.args = args;
+      this.maxRows = maxRows;
+      this.fetchSize = fetchSize;
+      this.streaming = streaming;
+    }
+
+    @Override
+    public PreparedStatement createPreparedStatement(Connection con) throws SQLException {
+      PreparedStatement ps = con.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+      if (maxRows > 0) {
+        ps.setMaxRows(maxRows);
+      }
+      if (streaming) {
+        DatabaseMetaData metaData = con.getMetaData();
+        ps.setFetchSize(fetchSize != null ? fetchSize : defaultStreamingFetchSize(
+            metaData.getDatabaseProductName(), metaData.getURL()));
+      }
+      for (int i = 0; i < args.size(); i++) {
+        ps.setObject(i + 1, args.get(i));
+      }
+      return ps;
+    }
   }
 
   /*
@@ -93,12 +382,50 @@ public class ApiCallLogServiceImpl implements ApiCallLogService {
    */
   @Override
   public List<String> findServiceProviders() {
-    return jdbcTemplate.query("select distinct spentity_id from api_call_log;", new RowMapper<String>() {
-      @Override
-      public String mapRow(ResultSet rs, int rowNum) throws SQLException {
-        return rs.getString("spentity_id");
+    Set<String> current = serviceProviders;
+    if (current == null || (serviceProviderRefreshMillis > 0
+        && System.currentTimeMillis() - serviceProvidersSeeded > serviceProviderRefreshMillis)) {
+      current = seedServiceProviders(current);
+    }
+    return new ArrayList<String>(current);
+  }
+
+  private synchronized Set<String> seedServiceProviders(Set<String> stale) {
+    if (serviceProviders != stale) {
+      // seeded by another thread in the meantime
+      return serviceProviders;
+    }
+    Set<String> seeded = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    // SP's saved while querying are added as well
+    seedingServiceProviders = seeded;
+    try {
+      List<String> found = jdbcTemplate.query("select distinct spentity_id from api_call_log;", new RowMapper<String>() {
+        @Override
+        public String mapRow(ResultSet rs, int rowNum) throws SQLException {
+          return rs.getString("spentity_id");
+        }
+      });
+      for (String serviceProvider : found) {
+        if (serviceProvider != null) {
+          seeded.add(serviceProvider);
+        }
       }
-    });
+      serviceProvidersSeeded = System.currentTimeMillis();
+      serviceProviders = seeded;
+    } finally {
+      seedingServiceProviders = null;
+    }
+    return seeded;
+  }
+
+  /**
+   * @param serviceProviderRefreshMillis
+   *          the maximum age of the cached SP's before they are read from the
+   *          table again, to pick up SP's logged by other nodes. 0 (default)
+   *          to only read them once.
+   */
+  public void setServiceProviderRefreshMillis(long serviceProviderRefreshMillis) {
+    this.serviceProviderRefreshMillis = serviceProviderRefreshMillis;
   }
 
 }
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfnet.coin.shared.log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Helper for finding the ApiCallLogs of a time range with any
+ * {@link ApiCallLogService}.
+ * 
+ */
+final class ApiCallLogTimeRanges {
+
+  private static final Comparator<ApiCallLog> TIMESTAMP_AND_ID = new Comparator<ApiCallLog>() {
+    @Override
+    public int compare(ApiCallLog o1, ApiCallLog o2) {
+      int result = compareNullable(o1.getTimestamp(), o2.getTimestamp());
+      return result != 0 ? result : compareNullable(o1.getId(), o2.getId());
+    }
+  };
+
+  private ApiCallLogTimeRanges() {
+  }
+
+  /**
+   * Find a page with the service if it supports time ranges, by filtering all
+   * ApiCallLogs of the SP in memory otherwise.
+   * 
+   * @see TimeRangeApiCallLogService#findApiCallLog(String, Date, Date,
+   *      ApiCallLog, int)
+   */
+  static List<ApiCallLog> find(ApiCallLogService service, String serviceProvider, Date from, Date to,
+      ApiCallLog after, int pageSize) {
+    if (service instanceof TimeRangeApiCallLogService) {
+      return ((TimeRangeApiCallLogService) service).findApiCallLog(serviceProvider, from, to, after, pageSize);
+    }
+    List<ApiCallLog> logs = inRange(service, serviceProvider, from, to);
+    int start = 0;
+    if (after != null) {
+      while (start < logs.size() && TIMESTAMP_AND_ID.compare(logs.get(start), after) <= 0) {
+        start++;
+      }
+    }
+    return new ArrayList<ApiCallLog>(logs.subList(start, Math.min(logs.size(), start + pageSize)));
+  }
+
+  /**
+   * Stream with the service if it supports time ranges, by filtering all
+   * ApiCallLogs of the SP in memory otherwise.
+   * 
+   * @see TimeRangeApiCallLogService#findApiCallLog(String, Date, Date,
+   *      ApiCallLogCallback)
+   */
+  static void find(ApiCallLogService service, String serviceProvider, Date from, Date to,
+      ApiCallLogCallback callback) {
+    if (service instanceof TimeRangeApiCallLogService) {
+      ((TimeRangeApiCallLogService) service).findApiCallLog(serviceProvider, from, to, callback);
+      return;
+    }
+    for (ApiCallLog log : inRange(service, serviceProvider, from, to)) {
+      callback.processApiCallLog(log);
+    }
+  }
+
+  private static List<ApiCallLog> inRange(ApiCallLogService service, String serviceProvider, Date from, Date to) {
+    List<ApiCallLog> logs = new ArrayList<ApiCallLog>();
+    for (ApiCallLog log : service.findApiCallLog(serviceProvider)) {
+      Date timestamp = log.getTimestamp();
+      if ((from == null || (timestamp != null && !timestamp.before(from)))
+          && (to == null || (timestamp != null && timestamp.before(to)))) {
+        logs.add(log);
+      }
+    }
+    Collections.sort(logs, TIMESTAMP_AND_ID);
+    return logs;
+  }
+
+  private static <T extends Comparable<? super T>> int compareNullable(T o1, T o2) {
+    if (o1 == null) {
+      return o2 == null ? 0 : -1;
+    }
+    return o2 == null ? 1 : o1.compareTo(o2);
+  }
+}
@@ -0,0 +1,366 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfnet.coin.shared.log;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.util.Assert;
+
+/**
+ * {@link ApiCallLogService} that takes the database round trip off the request
+ * thread. Logs are put in a bounded queue and written by a background thread
+ * in batches, when a batch is full or the flush interval has passed. What
+ * happens when the queue is full is determined by the {@link OverflowPolicy}.
+ * If a batch cannot be written, its logs are written one by one, so only the
+ * logs that fail themselves are lost (and counted); logs of a batch that
+ * failed halfway may be written twice. Once destroyed, logs are
+ * written on the calling thread. Queries are passed on to the delegate
+ * directly.
+ * 
+ */
+public class AsyncApiCallLogService implements BatchApiCallLogService, TimeRangeApiCallLogService, DisposableBean {
+
+  private static final Logger LOG = LoggerFactory.getLogger(AsyncApiCallLogService.class);
+
+  private static final long STOP_CHECK_MILLIS = 100;
+
+  /**
+   * What to do with a log when the queue is full
+   */
+  public enum OverflowPolicy {
+    /**
+     * Wait for room in the queue (backpressure on the request thread)
+     */
+    BLOCK,
+    /**
+     * Drop the oldest queued log to make room
+     */
+    DROP_OLDEST,
+    /**
+     * Keep one in every sampleRate overflowing logs (dropping the oldest queued
+     * log to make room) with its call count multiplied by sampleRate, drop the
+     * others
+     */
+    SAMPLE
+  }
+
+  private final ApiCallLogService delegate;
+  private final BlockingQueue<ApiCallLog> queue;
+  private final int batchSize;
+  private final long flushIntervalMillis;
+  private final Thread writer;
+
+  private volatile OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+  private volatile int sampleRate = 10;
+  /*
+   * Saving holds the read lock while it checks running and enqueues, so after destroy has set running to false under
+   * the write lock no log can end up in the queue anymore
+   */
+  private final ReadWriteLock runningLock = new ReentrantReadWriteLock();
+  private volatile boolean running = true;
+
+  private final AtomicLong overflows = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+
+  /**
+   * @param delegate
+   *          the service that actually stores the logs
+   * @param capacity
+   *          the maximum number of queued logs
+   * @param batchSize
+   *          the maximum number of logs written in one batch
+   * @param flushIntervalMillis
+   *          the maximum time a log waits for its batch to fill up
+   */
+  public AsyncApiCallLogService(ApiCallLogService delegate, int capacity, int batchSize, long flushIntervalMillis) {
+    Assert.notNull(delegate, "Delegate ApiCallLogService must not be null");
+    Assert.isTrue(batchSize > 0 && flushIntervalMillis > 0, "Batch size and flush interval must be positive");
+    this.delegate = delegate;
+    this.queue = new ArrayBlockingQueue<ApiCallLog>(capacity);
+    this.batchSize = batchSize;
+    this.flushIntervalMillis = flushIntervalMillis;
+    this.writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        writeLoop();
+      }
+    }, "ApiCallLog-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * nl.surfnet.coin.shared.log.ApiCallLogService#saveApiCallLog(nl.surfnet.
+   * coin.shared.log.ApiCallLog)
+   */
+  @Override
+  public void saveApiCallLog(ApiCallLog log) {
+    // the caller may keep using its (thread local) instance, so queue a copy
+    ApiCallLog copy = copy(log);
+    runningLock.readLock().lock();
+    try {
+      if (running) {
+        enqueue(copy);
+        return;
+      }
+    } finally {
+      runningLock.readLock().unlock();
+    }
+    write(copy);
+  }
+
+  private void enqueue(ApiCallLog copy) {
+    if (queue.offer(copy)) {
+      return;
+    }
+    switch (overflowPolicy) {
+    case BLOCK:
+      enqueueBlocking(copy);
+      break;
+    case SAMPLE:
+      if (overflows.incrementAndGet() % sampleRate != 0) {
+        dropped.incrementAndGet();
+        break;
+      }
+      // the kept log stands for the dropped ones
+      copy.setCallCount((int) Math.min(Integer.MAX_VALUE, (long) sampleRate * copy.getCallCount()));
+      enqueueDroppingOldest(copy);
+      break;
+    default:
+      enqueueDroppingOldest(copy);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * nl.surfnet.coin.shared.log.BatchApiCallLogService#saveApiCallLogs(java.util.List)
+   */
+  @Override
+  public void saveApiCallLogs(List<ApiCallLog> logs) {
+    for (ApiCallLog log : logs) {
+      saveApiCallLog(log);
+    }
+  }
+
+  private void enqueueBlocking(ApiCallLog log) {
+    try {
+      queue.put(log);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      dropped.incrementAndGet();
+    }
+  }
+
+  private void enqueueDroppingOldest(ApiCallLog log) {
+    while (!queue.offer(log)) {
+      if (queue.poll() != null) {
+        dropped.incrementAndGet();
+      }
+    }
+  }
+
+  private void writeLoop() {
+    List<ApiCallLog> batch = new ArrayList<ApiCallLog>(batchSize);
+    while (running || !queue.isEmpty()) {
+      long deadline = System.currentTimeMillis() + flushIntervalMillis;
+      try {
+        while (batch.size() < batchSize) {
+          long wait = deadline - System.currentTimeMillis();
+          if (!running || wait <= 0) {
+            // no more logs will be queued, or the batch is due
+            queue.drainTo(batch, batchSize - batch.size());
+            break;
+          }
+          // wake up regularly to see if the service is destroyed
+          ApiCallLog log = queue.poll(Math.min(wait, STOP_CHECK_MILLIS), TimeUnit.MILLISECONDS);
+          if (log != null) {
+            batch.add(log);
+            queue.drainTo(batch, batchSize - batch.size());
+          }
+        }
+      } catch (InterruptedException e) {
+        LOG.debug("ApiCallLog writer interrupted, will write the pending logs");
+      }
+      write(batch);
+    }
+  }
+
+  private void write(List<ApiCallLog> batch) {
+    if (batch.isEmpty()) {
+      return;
+    }
+    try {
+      ApiCallLogBatches.save(delegate, batch);
+    } catch (Throwable e) {
+      // not just exceptions, an error would end the writer thread and leave blocked producers waiting forever
+      LOG.warn("Could not write batch of " + batch.size() + " ApiCallLogs, writing them one by one", e);
+      for (ApiCallLog log : batch) {
+        write(log);
+      }
+    } finally {
+      batch.clear();
+    }
+  }
+
+  private void write(ApiCallLog log) {
+    try {
+      delegate.saveApiCallLog(log);
+    } catch (Throwable e) {
+      failed.incrementAndGet();
+      LOG.error("Could not write ApiCallLog of " + log.getSpEntityId(), e);
+    }
+  }
+
+  private ApiCallLog copy(ApiCallLog log) {
+    ApiCallLog copy = new ApiCallLog();
+    copy.setUserId(log.getUserId());
+    copy.setSpEntityId(log.getSpEntityId());
+    copy.setIpAddress(log.getIpAddress());
+    copy.setApiVersion(log.getApiVersion());
+    copy.setResourceUrl(log.getResourceUrl());
+    copy.setConsumerKey(log.getConsumerKey());
+    copy.setCallCount(log.getCallCount());
+    copy.setTimestamp(log.getTimestamp() == null ? new Date() : log.getTimestamp());
+    return copy;
+  }
+
+  /**
+   * Stop accepting logs in the queue and wait for the queued logs to be
+   * written. Logs that are saved afterwards are written synchronously.
+   */
+  @Override
+  public void destroy() throws InterruptedException {
+    runningLock.writeLock().lock();
+    try {
+      running = false;
+    } finally {
+      runningLock.writeLock().unlock();
+    }
+    writer.join();
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * nl.surfnet.coin.shared.log.ApiCallLogService#findApiCallLog(java.lang.String
+   * )
+   */
+  @Override
+  public List<ApiCallLog> findApiCallLog(String serviceProvider) {
+    return delegate.findApiCallLog(serviceProvider);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * nl.surfnet.coin.shared.log.TimeRangeApiCallLogService#findApiCallLog(java.lang.String
+   * , java.util.Date, java.util.Date, nl.surfnet.coin.shared.log.ApiCallLog,
+   * int)
+   */
+  @Override
+  public List<ApiCallLog> findApiCallLog(String serviceProvider, Date from, Date to, ApiCallLog after, int pageSize) {
+    return ApiCallLogTimeRanges.find(delegate, serviceProvider, from, to, after, pageSize);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * nl.surfnet.coin.shared.log.TimeRangeApiCallLogService#findApiCallLog(java.lang.String
+   * , java.util.Date, java.util.Date,
+   * nl.surfnet.coin.shared.log.ApiCallLogCallback)
+   */
+  @Override
+  public void findApiCallLog(String serviceProvider, Date from, Date to, ApiCallLogCallback callback) {
+    ApiCallLogTimeRanges.find(delegate, serviceProvider, from, to, callback);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see nl.surfnet.coin.shared.log.ApiCallLogService#findServiceProviders()
+   */
+  @Override
+  public List<String> findServiceProviders() {
+    return delegate.findServiceProviders();
+  }
+
+  /**
+   * @param overflowPolicy
+   *          what to do with logs when the queue is full, BLOCK by default
+   */
+  public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+    this.overflowPolicy = overflowPolicy;
+  }
+
+  /**
+   * @param sampleRate
+   *          with the SAMPLE policy, one in every sampleRate overflowing logs
+   *          is kept, with its call count multiplied by sampleRate (which is
+   *          only stored by delegates that store call counts)
+   */
+  public void setSampleRate(int sampleRate) {
+    Assert.isTrue(sampleRate > 0, "Sample rate must be positive");
+    this.sampleRate = sampleRate;
+  }
+
+  /**
+   * @return the number of logs that were dropped because the queue was full
+   */
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  /**
+   * @return the number of logs that could not be written by the delegate
+   */
+  public long getFailed() {
+    return failed.get();
+  }
+
+  /**
+   * @return the service the queued logs are written to
+   */
+  ApiCallLogService getDelegate() {
+    return delegate;
+  }
+
+  /**
+   * @return the number of queued logs
+   */
+  public int getQueueSize() {
+    return queue.size();
+  }
+}
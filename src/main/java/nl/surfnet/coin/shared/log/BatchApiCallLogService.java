@@ -0,0 +1,37 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfnet.coin.shared.log;
+
+import java.util.List;
+
+/**
+ * {@link ApiCallLogService} that can save a batch of ApiCallLogs at once. It
+ * is a separate interface so existing implementations of ApiCallLogService
+ * do not have to implement it; the services that write to a delegate save
+ * the logs one by one if the delegate does not support batches.
+ * 
+ */
+public interface BatchApiCallLogService extends ApiCallLogService {
+
+  /**
+   * Log a batch of Api requests
+   * 
+   * @param logs
+   *          the ApiCallLogs to be inserted
+   */
+  void saveApiCallLogs(List<ApiCallLog> logs);
+
+}
@@ -0,0 +1,406 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfnet.coin.shared.log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.util.Assert;
+import org.springframework.util.ObjectUtils;
+
+/**
+ * {@link ApiCallLogService} that cuts the write volume of clients that poll
+ * the same resource over and over. Identical requests (same user, SP,
+ * consumer key and resource URL) within a time window are coalesced into one
+ * ApiCallLog with the number of requests as call count, which is written when
+ * the window closes. Requests of a SP can also be sampled: with a sample rate
+ * of n only one in every n requests is kept, counting for n requests.
+ * <p>
+ * The delegate must store the call count: an {@link ApiCallLogServiceImpl}
+ * with the call_count column, directly or behind an
+ * {@link AsyncApiCallLogService}. Queries are passed on to the delegate
+ * directly.
+ * 
+ */
+public class CoalescingApiCallLogService implements BatchApiCallLogService, TimeRangeApiCallLogService, DisposableBean {
+
+  private static final Logger LOG = LoggerFactory.getLogger(CoalescingApiCallLogService.class);
+
+  private final ApiCallLogService delegate;
+  private final ScheduledExecutorService flusher;
+
+  /*
+   * Saving takes the read lock, so requests are coalesced concurrently. Only
+   * the swap of the window on flush takes the write lock.
+   */
+  private final ReadWriteLock swapLock = new ReentrantReadWriteLock();
+  private ConcurrentMap<CoalesceKey, Coalesced> window = new ConcurrentHashMap<CoalesceKey, Coalesced>();
+
+  private final ConcurrentMap<String, AtomicLong> sampleCounters = new ConcurrentHashMap<String, AtomicLong>();
+  private volatile Map<String, Integer> sampleRates = Collections.emptyMap();
+  private volatile int defaultSampleRate = 1;
+
+  private volatile boolean running = true;
+
+  private final AtomicLong received = new AtomicLong();
+  private final AtomicLong sampledOut = new AtomicLong();
+  private final AtomicLong written = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+
+  /**
+   * @param delegate
+   *          the service that stores the coalesced logs, including their call
+   *          count
+   * @param windowMillis
+   *          the length of the window in which identical requests are
+   *          coalesced
+   */
+  public CoalescingApiCallLogService(ApiCallLogService delegate, long windowMillis) {
+    Assert.notNull(delegate, "Delegate ApiCallLogService must not be null");
+    Assert.isTrue(storesCallCount(delegate),
+        "Delegate ApiCallLogService must store the call count, e.g. an ApiCallLogServiceImpl with the call_count column");
+    Assert.isTrue(windowMillis > 0, "Window must be positive");
+    this.delegate = delegate;
+    this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "ApiCallLog-coalescer");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    flusher.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        flush();
+      }
+    }, windowMillis, windowMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * nl.surfnet.coin.shared.log.ApiCallLogService#saveApiCallLog(nl.surfnet.
+   * coin.shared.log.ApiCallLog)
+   */
+  @Override
+  public void saveApiCallLog(ApiCallLog log) {
+    received.incrementAndGet();
+    int sampleRate = sampleRate(log.getSpEntityId());
+    if (sampleRate > 1 && sampleCounter(log.getSpEntityId()).getAndIncrement() % sampleRate != 0) {
+      sampledOut.incrementAndGet();
+      return;
+    }
+    long callCount = (long) sampleRate * log.getCallCount();
+    swapLock.readLock().lock();
+    try {
+      if (running) {
+        CoalesceKey key = new CoalesceKey(log);
+        Coalesced coalesced = window.get(key);
+        if (coalesced == null) {
+          Coalesced newCoalesced = new Coalesced(log);
+          coalesced = window.putIfAbsent(key, newCoalesced);
+          if (coalesced == null) {
+            coalesced = newCoalesced;
+          }
+        }
+        coalesced.callCount.addAndGet(callCount);
+        return;
+      }
+    } finally {
+      swapLock.readLock().unlock();
+    }
+    Coalesced coalesced = new Coalesced(log);
+    coalesced.callCount.set(callCount);
+    delegate.saveApiCallLog(coalesced.toApiCallLog());
+    written.incrementAndGet();
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * nl.surfnet.coin.shared.log.BatchApiCallLogService#saveApiCallLogs(java.util.List)
+   */
+  @Override
+  public void saveApiCallLogs(List<ApiCallLog> logs) {
+    for (ApiCallLog log : logs) {
+      saveApiCallLog(log);
+    }
+  }
+
+  /**
+   * Write the coalesced logs of the current window
+   */
+  public void flush() {
+    Map<CoalesceKey, Coalesced> closed;
+    swapLock.writeLock().lock();
+    try {
+      if (window.isEmpty()) {
+        return;
+      }
+      closed = window;
+      window = new ConcurrentHashMap<CoalesceKey, Coalesced>();
+    } finally {
+      swapLock.writeLock().unlock();
+    }
+    List<ApiCallLog> logs = new ArrayList<ApiCallLog>(closed.size());
+    for (Coalesced coalesced : closed.values()) {
+      logs.add(coalesced.toApiCallLog());
+    }
+    try {
+      ApiCallLogBatches.save(delegate, logs);
+      written.addAndGet(logs.size());
+    } catch (RuntimeException e) {
+      LOG.warn("Could not write batch of " + logs.size() + " coalesced ApiCallLogs, writing them one by one", e);
+      for (ApiCallLog log : logs) {
+        write(log);
+      }
+    }
+  }
+
+  private void write(ApiCallLog log) {
+    try {
+      delegate.saveApiCallLog(log);
+      written.incrementAndGet();
+    } catch (RuntimeException e) {
+      dropped.incrementAndGet();
+      LOG.error("Could not write coalesced ApiCallLog of " + log.getSpEntityId(), e);
+    }
+  }
+
+  /*
+   * Without the call count the coalesced and sampled logs would be stored as
+   * single requests
+   */
+  private static boolean storesCallCount(ApiCallLogService service) {
+    if (service instanceof AsyncApiCallLogService) {
+      return storesCallCount(((AsyncApiCallLogService) service).getDelegate());
+    }
+    return service instanceof ApiCallLogServiceImpl && ((ApiCallLogServiceImpl) service).isCallCountColumn();
+  }
+
+  private int sampleRate(String serviceProvider) {
+    Integer sampleRate = serviceProvider == null ? null : sampleRates.get(serviceProvider);
+    return sampleRate == null ? defaultSampleRate : sampleRate;
+  }
+
+  private AtomicLong sampleCounter(String serviceProvider) {
+    String key = serviceProvider == null ? "" : serviceProvider;
+    AtomicLong counter = sampleCounters.get(key);
+    if (counter == null) {
+      AtomicLong newCounter = new AtomicLong();
+      counter = sampleCounters.putIfAbsent(key, newCounter);
+      if (counter == null) {
+        counter = newCounter;
+      }
+    }
+    return counter;
+  }
+
+  /**
+   * Stop coalescing and write the current window. Logs that are saved
+   * afterwards are written directly.
+   */
+  @Override
+  public void destroy() throws InterruptedException {
+    flusher.shutdown();
+    flusher.awaitTermination(1, TimeUnit.MINUTES);
+    swapLock.writeLock().lock();
+    try {
+      running = false;
+    } finally {
+      swapLock.writeLock().unlock();
+    }
+    flush();
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * nl.surfnet.coin.shared.log.ApiCallLogService#findApiCallLog(java.lang.String
+   * )
+   */
+  @Override
+  public List<ApiCallLog> findApiCallLog(String serviceProvider) {
+    return delegate.findApiCallLog(serviceProvider);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * nl.surfnet.coin.shared.log.TimeRangeApiCallLogService#findApiCallLog(java.lang.String
+   * , java.util.Date, java.util.Date, nl.surfnet.coin.shared.log.ApiCallLog,
+   * int)
+   */
+  @Override
+  public List<ApiCallLog> findApiCallLog(String serviceProvider, Date from, Date to, ApiCallLog after, int pageSize) {
+    return ApiCallLogTimeRanges.find(delegate, serviceProvider, from, to, after, pageSize);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * nl.surfnet.coin.shared.log.TimeRangeApiCallLogService#findApiCallLog(java.lang.String
+   * , java.util.Date, java.util.Date,
+   * nl.surfnet.coin.shared.log.ApiCallLogCallback)
+   */
+  @Override
+  public void findApiCallLog(String serviceProvider, Date from, Date to, ApiCallLogCallback callback) {
+    ApiCallLogTimeRanges.find(delegate, serviceProvider, from, to, callback);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see nl.surfnet.coin.shared.log.ApiCallLogService#findServiceProviders()
+   */
+  @Override
+  public List<String> findServiceProviders() {
+    return delegate.findServiceProviders();
+  }
+
+  /**
+   * @param sampleRates
+   *          the sample rate per SP entityid, one in every n requests of the
+   *          SP is kept
+   */
+  public void setSampleRates(Map<String, Integer> sampleRates) {
+    for (Integer sampleRate : sampleRates.values()) {
+      Assert.isTrue(sampleRate != null && sampleRate > 0, "Sample rates must be positive");
+    }
+    this.sampleRates = new HashMap<String, Integer>(sampleRates);
+  }
+
+  /**
+   * @param defaultSampleRate
+   *          the sample rate of the SP's without their own sample rate, 1
+   *          (keep all requests) by default
+   */
+  public void setDefaultSampleRate(int defaultSampleRate) {
+    Assert.isTrue(defaultSampleRate > 0, "Sample rate must be positive");
+    this.defaultSampleRate = defaultSampleRate;
+  }
+
+  /**
+   * @return the number of saved logs
+   */
+  public long getReceived() {
+    return received.get();
+  }
+
+  /**
+   * @return the number of saved logs that were not kept due to sampling
+   */
+  public long getSampledOut() {
+    return sampledOut.get();
+  }
+
+  /**
+   * @return the number of (coalesced) logs written to the delegate
+   */
+  public long getWritten() {
+    return written.get();
+  }
+
+  /**
+   * @return the number of coalesced logs that could not be written
+   */
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  private static final class CoalesceKey {
+    private final String userId;
+    private final String spEntityId;
+    private final String consumerKey;
+    private final String resourceUrl;
+
+    private CoalesceKey(ApiCallLog log) {
+      userId = log.getUserId();
+      spEntityId = log.getSpEntityId();
+      consumerKey = log.getConsumerKey();
+      resourceUrl = log.getResourceUrl();
+    }
+
+    @Override
+    public int hashCode() {
+      int result = ObjectUtils.nullSafeHashCode(userId);
+      result = 31 * result + ObjectUtils.nullSafeHashCode(spEntityId);
+      result = 31 * result + ObjectUtils.nullSafeHashCode(consumerKey);
+      return 31 * result + ObjectUtils.nullSafeHashCode(resourceUrl);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof CoalesceKey)) {
+        return false;
+      }
+      CoalesceKey other = (CoalesceKey) obj;
+      return ObjectUtils.nullSafeEquals(userId, other.userId) && ObjectUtils.nullSafeEquals(spEntityId, other.spEntityId)
+          && ObjectUtils.nullSafeEquals(consumerKey, other.consumerKey)
+          && ObjectUtils.nullSafeEquals(resourceUrl, other.resourceUrl);
+    }
+  }
+
+  /*
+   * The first request of a coalesced ApiCallLog and the number of requests.
+   * The fields are copied, as the caller may keep using its (thread local)
+   * instance.
+   */
+  private static final class Coalesced {
+    private final ApiCallLog first = new ApiCallLog();
+    private final AtomicLong callCount = new AtomicLong();
+
+    private Coalesced(ApiCallLog log) {
+      first.setUserId(log.getUserId());
+      first.setSpEntityId(log.getSpEntityId());
+      first.setIpAddress(log.getIpAddress());
+      first.setApiVersion(log.getApiVersion());
+      first.setResourceUrl(log.getResourceUrl());
+      first.setConsumerKey(log.getConsumerKey());
+      first.setTimestamp(log.getTimestamp() == null ? new Date() : log.getTimestamp());
+    }
+
+    private ApiCallLog toApiCallLog() {
+      first.setCallCount((int) Math.min(Integer.MAX_VALUE, callCount.get()));
+      return first;
+    }
+  }
+}
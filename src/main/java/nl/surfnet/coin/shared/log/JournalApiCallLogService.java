@@ -0,0 +1,317 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfnet.coin.shared.log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.util.Assert;
+
+/**
+ * {@link ApiCallLogService} that appends the logs to a local journal instead
+ * of the database, for when even a queued database write is too much on the
+ * request path. The journal consists of memory mapped segment files in a
+ * directory. A log is written to the page cache in a few microseconds, so a
+ * crash of the process does not lose logs that were saved (a crash of the
+ * machine can lose the logs that were not forced to disk yet, see
+ * {@link #setForceIntervalMillis(long)}).
+ * <p>
+ * A full segment is forced to disk, unmapped and completed by renaming it from
+ * .open to .journal in a background thread, after which the
+ * {@link ApiCallLogJournalLoader} can import it into the database. Disk writes
+ * never happen on the thread that saves a log.
+ * Segments that were still open when the process stopped are completed on
+ * startup. Queries are passed on to the query delegate.
+ * 
+ */
+public class JournalApiCallLogService implements BatchApiCallLogService, TimeRangeApiCallLogService, DisposableBean {
+
+  private static final Logger LOG = LoggerFactory.getLogger(JournalApiCallLogService.class);
+
+  private static final int MIN_SEGMENT_SIZE = 64 * 1024;
+
+  private final File directory;
+  private final int segmentSize;
+  private final ApiCallLogService queryDelegate;
+
+  /*
+   * Forces, unmaps and completes the segments, one task at a time, so a
+   * mapping is never forced after it is unmapped
+   */
+  private final ScheduledExecutorService writer;
+
+  private long sequence;
+  private File openSegment;
+  private MappedByteBuffer buffer;
+  private boolean closed;
+  private ScheduledFuture<?> periodicForce;
+
+  /**
+   * @param directory
+   *          the directory of the journal segments
+   * @param segmentSize
+   *          the size in bytes of a segment
+   * @param queryDelegate
+   *          the service that answers the queries, usually the
+   *          {@link ApiCallLogServiceImpl} of the database the journal is
+   *          loaded into
+   */
+  public JournalApiCallLogService(File directory, int segmentSize, ApiCallLogService queryDelegate)
+      throws IOException {
+    Assert.isTrue(segmentSize >= MIN_SEGMENT_SIZE, "Segment size must be at least " + MIN_SEGMENT_SIZE);
+    Assert.notNull(queryDelegate, "Query delegate ApiCallLogService must not be null");
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create journal directory " + directory);
+    }
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.queryDelegate = queryDelegate;
+    for (File segment : ApiCallLogJournal.segments(directory, ApiCallLogJournal.OPEN_SUFFIX)) {
+      LOG.info("Completing journal segment {} that was left open", segment);
+      complete(segment);
+    }
+    for (File segment : ApiCallLogJournal.segments(directory, "")) {
+      sequence = Math.max(sequence, ApiCallLogJournal.sequence(segment));
+    }
+    writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "ApiCallLog-journal-writer");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * nl.surfnet.coin.shared.log.ApiCallLogService#saveApiCallLog(nl.surfnet.
+   * coin.shared.log.ApiCallLog)
+   */
+  @Override
+  public void saveApiCallLog(ApiCallLog log) {
+    byte[] record = ApiCallLogJournal.encode(log);
+    Assert.isTrue(ApiCallLogJournal.HEADER_SIZE + record.length + 8 <= segmentSize,
+        "ApiCallLog does not fit in a journal segment");
+    try {
+      append(record);
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not write ApiCallLog to journal " + openSegment, e);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * nl.surfnet.coin.shared.log.BatchApiCallLogService#saveApiCallLogs(java.util.List)
+   */
+  @Override
+  public void saveApiCallLogs(List<ApiCallLog> logs) {
+    for (ApiCallLog log : logs) {
+      saveApiCallLog(log);
+    }
+  }
+
+  private synchronized void append(byte[] record) throws IOException {
+    Assert.state(!closed, "Journal is closed");
+    // room for the record, its length and the end marker
+    if (buffer == null || buffer.remaining() < record.length + 8) {
+      closeSegment();
+      openSegment();
+    }
+    int start = buffer.position();
+    buffer.position(start + 4);
+    buffer.put(record);
+    // the length goes last, so a reader never sees a partial record
+    buffer.putInt(start, record.length);
+  }
+
+  /*
+   * Mapping a new, sparse segment does not write to disk
+   */
+  private void openSegment() throws IOException {
+    openSegment = ApiCallLogJournal.segmentFile(directory, ++sequence, ApiCallLogJournal.OPEN_SUFFIX);
+    RandomAccessFile file = new RandomAccessFile(openSegment, "rw");
+    try {
+      file.setLength(segmentSize);
+      buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+      ApiCallLogJournal.writeHeader(buffer);
+    } finally {
+      // the mapping stays valid after the file is closed
+      file.close();
+    }
+  }
+
+  /*
+   * Hand the open segment to the writer thread, returns null if there is none
+   */
+  private Future<?> closeSegment() {
+    if (buffer == null) {
+      return null;
+    }
+    final File segment = openSegment;
+    final MappedByteBuffer mapping = buffer;
+    buffer = null;
+    openSegment = null;
+    return writer.submit(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          mapping.force();
+          ApiCallLogJournal.unmap(mapping);
+          complete(segment);
+        } catch (IOException e) {
+          LOG.error("Could not complete journal segment " + segment + ", it is completed on the next start", e);
+        }
+      }
+    });
+  }
+
+  private void complete(File segment) throws IOException {
+    File completed = ApiCallLogJournal.segmentFile(directory, ApiCallLogJournal.sequence(segment),
+        ApiCallLogJournal.SEGMENT_SUFFIX);
+    if (!segment.renameTo(completed)) {
+      throw new IOException("Could not rename journal segment " + segment + " to " + completed);
+    }
+  }
+
+  /**
+   * Complete the open segment, so it can be loaded without waiting for it to
+   * fill up. The next log starts a new segment.
+   */
+  public void rotateSegment() throws IOException, InterruptedException {
+    Future<?> completion;
+    synchronized (this) {
+      completion = closeSegment();
+    }
+    if (completion != null) {
+      try {
+        completion.get();
+      } catch (ExecutionException e) {
+        throw new IllegalStateException("Could not complete journal segment", e.getCause());
+      }
+    }
+  }
+
+  /**
+   * Complete the open segment and stop the writer thread, logs can no longer
+   * be saved afterwards
+   */
+  @Override
+  public void destroy() throws InterruptedException {
+    synchronized (this) {
+      closed = true;
+      closeSegment();
+    }
+    writer.shutdown();
+    writer.awaitTermination(1, TimeUnit.MINUTES);
+  }
+
+  /**
+   * @param forceIntervalMillis
+   *          the time between two forces of the open segment to disk by the
+   *          writer thread, which bounds the logs a crash of the machine can
+   *          lose. 0 or less (default) to only force full segments.
+   */
+  public synchronized void setForceIntervalMillis(long forceIntervalMillis) {
+    if (periodicForce != null) {
+      periodicForce.cancel(false);
+      periodicForce = null;
+    }
+    if (forceIntervalMillis <= 0) {
+      return;
+    }
+    periodicForce = writer.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        MappedByteBuffer mapping;
+        synchronized (JournalApiCallLogService.this) {
+          mapping = buffer;
+        }
+        // a rotated mapping is only unmapped by a later task of this thread
+        if (mapping != null) {
+          mapping.force();
+        }
+      }
+    }, forceIntervalMillis, forceIntervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * nl.surfnet.coin.shared.log.ApiCallLogService#findApiCallLog(java.lang.String
+   * )
+   */
+  @Override
+  public List<ApiCallLog> findApiCallLog(String serviceProvider) {
+    return queryDelegate.findApiCallLog(serviceProvider);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * nl.surfnet.coin.shared.log.TimeRangeApiCallLogService#findApiCallLog(java.lang.String
+   * , java.util.Date, java.util.Date, nl.surfnet.coin.shared.log.ApiCallLog,
+   * int)
+   */
+  @Override
+  public List<ApiCallLog> findApiCallLog(String serviceProvider, Date from, Date to, ApiCallLog after, int pageSize) {
+    return ApiCallLogTimeRanges.find(queryDelegate, serviceProvider, from, to, after, pageSize);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * nl.surfnet.coin.shared.log.TimeRangeApiCallLogService#findApiCallLog(java.lang.String
+   * , java.util.Date, java.util.Date,
+   * nl.surfnet.coin.shared.log.ApiCallLogCallback)
+   */
+  @Override
+  public void findApiCallLog(String serviceProvider, Date from, Date to, ApiCallLogCallback callback) {
+    ApiCallLogTimeRanges.find(queryDelegate, serviceProvider, from, to, callback);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see nl.surfnet.coin.shared.log.ApiCallLogService#findServiceProviders()
+   */
+  @Override
+  public List<String> findServiceProviders() {
+    return queryDelegate.findServiceProviders();
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfnet.coin.shared.log;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * {@link ApiCallLogService} that can find the ApiCallLogs of a time range page
+ * by page or as a stream. It is a separate interface so existing
+ * implementations of ApiCallLogService do not have to implement it; the
+ * services that query a delegate filter its ApiCallLogs in memory if the
+ * delegate does not support time ranges.
+ * 
+ */
+public interface TimeRangeApiCallLogService extends ApiCallLogService {
+
+  /**
+   * Find a page of the ApiCallLogs of a SP within a time range, ordered by
+   * timestamp and id. The next page is found by passing the last ApiCallLog
+   * of the current page as cursor.
+   * 
+   * @param serviceProvider
+   *          the entityid of the serviceProvider
+   * @param from
+   *          the start of the time range (inclusive), {@literal null} for no
+   *          lower bound
+   * @param to
+   *          the end of the time range (exclusive), {@literal null} for no
+   *          upper bound
+   * @param after
+   *          the last ApiCallLog of the previous page, {@literal null} for the
+   *          first page
+   * @param pageSize
+   *          the maximum number of ApiCallLogs to return
+   * @return at most pageSize ApicCallLog instances
+   */
+  List<ApiCallLog> findApiCallLog(String serviceProvider, Date from, Date to, ApiCallLog after, int pageSize);
+
+  /**
+   * Stream the ApiCallLogs of a SP within a time range, ordered by timestamp
+   * and id, to the callback without holding them in memory.
+   * 
+   * @param serviceProvider
+   *          the entityid of the serviceProvider
+   * @param from
+   *          the start of the time range (inclusive), {@literal null} for no
+   *          lower bound
+   * @param to
+   *          the end of the time range (exclusive), {@literal null} for no
+   *          upper bound
+   * @param callback
+   *          the callback that is invoked for each ApiCallLog
+   */
+  void findApiCallLog(String serviceProvider, Date from, Date to, ApiCallLogCallback callback);
+
+}
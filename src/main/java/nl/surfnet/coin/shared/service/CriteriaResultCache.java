@@ -0,0 +1,107 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.coin.shared.service;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, expiring LRU cache of the ids that a (normalized) criteria query
+ * returned. Entries are tagged with the write generation of the persistent
+ * class (see {@link EntityCountCache#generation()}) and are only returned
+ * while no write has happened since.
+ */
+final class CriteriaResultCache {
+
+  private final long ttlMillis;
+  private final Map<Object, CachedIds> entries;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  CriteriaResultCache(final int maxSize, long ttlMillis) {
+    this.ttlMillis = ttlMillis;
+    this.entries = new LinkedHashMap<Object, CachedIds>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Object, CachedIds> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  /**
+   * @param key
+   *          the normalized query
+   * @param generation
+   *          the current write generation
+   * @return the cached ids, or {@literal null}
+   */
+  List<Long> get(Object key, long generation) {
+    CachedIds entry;
+    synchronized (entries) {
+      entry = entries.get(key);
+      if (entry != null && (entry.generation != generation || System.currentTimeMillis() - entry.timestamp >= ttlMillis)) {
+        entries.remove(key);
+        entry = null;
+      }
+    }
+    if (entry == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    return entry.ids;
+  }
+
+  /**
+   * @param key
+   *          the normalized query
+   * @param generation
+   *          the write generation from before the query was executed
+   * @param ids
+   *          the ids the query returned
+   */
+  void put(Object key, long generation, List<Long> ids) {
+    synchronized (entries) {
+      entries.put(key, new CachedIds(generation, ids, System.currentTimeMillis()));
+    }
+  }
+
+  long getHits() {
+    return hits.get();
+  }
+
+  long getMisses() {
+    return misses.get();
+  }
+
+  private static final class CachedIds {
+    private final long generation;
+    private final List<Long> ids;
+    private final long timestamp;
+
+    private CachedIds(long generation, List<Long> ids, long timestamp) {
+      this.generation = generation;
+      this.ids = ids;
+      this.timestamp = timestamp;
+    }
+  }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.coin.shared.service;
+
+import nl.surfnet.coin.shared.domain.DomainObject;
+
+/**
+ * Callback for processing {@link DomainObject}'s one at a time, see
+ * {@link GenericService#scrollAll(DomainObjectCallback)}
+ */
+public interface DomainObjectCallback<T extends DomainObject> {
+
+  /**
+   * Process a single domain object. The domain object is evicted from the
+   * session some time after this method returns, so it should not be kept
+   * around.
+   * 
+   * @param domainObject
+   *          the domain object
+   */
+  void process(T domainObject);
+}
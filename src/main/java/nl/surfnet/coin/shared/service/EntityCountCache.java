@@ -0,0 +1,147 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.coin.shared.service;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hibernate.SessionFactory;
+
+/**
+ * Cache of the row count of a persistent class, shared by all
+ * {@link GenericServiceHibernateImpl}'s of that class and session factory
+ * (so services of different databases or tenants never share a count). The
+ * caches of a session factory are kept for as long as the session factory is
+ * reachable. Every write bumps the
+ * generation, counts that were queried in an older generation are never
+ * returned.
+ */
+final class EntityCountCache {
+
+  private static final Map<SessionFactory, ConcurrentMap<Class<?>, EntityCountCache>> CACHES = new WeakHashMap<SessionFactory, ConcurrentMap<Class<?>, EntityCountCache>>();
+
+  private final AtomicLong generation = new AtomicLong();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  private volatile Entry entry;
+
+  private volatile boolean used;
+
+  private EntityCountCache() {
+  }
+
+  /**
+   * @param sessionFactory
+   *          the session factory the persistent class is queried with
+   * @param persistentClass
+   *          the persistent class
+   * @return the (shared) cache of the persistent class
+   */
+  static EntityCountCache forClass(SessionFactory sessionFactory, Class<?> persistentClass) {
+    ConcurrentMap<Class<?>, EntityCountCache> caches;
+    synchronized (CACHES) {
+      caches = CACHES.get(sessionFactory);
+      if (caches == null) {
+        caches = new ConcurrentHashMap<Class<?>, EntityCountCache>();
+        CACHES.put(sessionFactory, caches);
+      }
+    }
+    EntityCountCache cache = caches.get(persistentClass);
+    if (cache == null) {
+      caches.putIfAbsent(persistentClass, new EntityCountCache());
+      cache = caches.get(persistentClass);
+    }
+    return cache;
+  }
+
+  /**
+   * @param maxAgeMillis
+   *          the maximum age of the cached count
+   * @return the cached count, or {@literal null} if there is none or it is too
+   *         old or invalidated
+   */
+  Integer get(long maxAgeMillis) {
+    Entry current = entry;
+    if (current != null && current.generation == generation.get()
+        && System.currentTimeMillis() - current.timestamp < maxAgeMillis) {
+      hits.incrementAndGet();
+      return current.count;
+    }
+    misses.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * @return the write generation of the persistent class, to pass to
+   *         {@link #put(long, int)} it must be taken before the count is
+   *         queried
+   */
+  long generation() {
+    return generation.get();
+  }
+
+  /**
+   * Mark that counts or query results of the persistent class are cached, so
+   * writes must invalidate them again once their transaction completes. To be
+   * called before {@link #generation()} is taken for a cached value.
+   */
+  void markUsed() {
+    used = true;
+  }
+
+  /**
+   * @return whether any service of the persistent class caches its counts or
+   *         query results
+   */
+  boolean isUsed() {
+    return used;
+  }
+
+  void put(long countGeneration, int count) {
+    if (countGeneration == generation.get()) {
+      entry = new Entry(countGeneration, count, System.currentTimeMillis());
+    }
+  }
+
+  void invalidate() {
+    generation.incrementAndGet();
+  }
+
+  long getHits() {
+    return hits.get();
+  }
+
+  long getMisses() {
+    return misses.get();
+  }
+
+  private static final class Entry {
+    private final long generation;
+    private final int count;
+    private final long timestamp;
+
+    private Entry(long generation, int count, long timestamp) {
+      this.generation = generation;
+      this.count = count;
+      this.timestamp = timestamp;
+    }
+  }
+}
@@ -18,6 +18,7 @@ package nl.surfnet.coin.shared.service;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import org.hibernate.Criteria;
 
@@ -42,21 +43,169 @@ public interface GenericService<T extends DomainObject> {
    */
   T findById(Long id);
 
+  /**
+   * Find by primary keys. Domain objects that are already in the session are
+   * returned from there, the others are fetched with (chunked) IN queries.
+   * 
+   * @param ids
+   *          the entity primary keys
+   * @return the domainObjects in the order of the ids, ids that do not exist
+   *         are skipped
+   */
+  List<T> findByIds(Collection<Long> ids);
+
   void delete(T o);
 
   List<T> findAll();
 
   List<T> findByExample(T exampleInstance);
 
+  /**
+   * Find the values of the given properties of all domain objects, without
+   * hydrating (and dirty checking) the domain objects themselves.
+   * 
+   * @param properties
+   *          the names of the properties
+   * @return per domain object an array with the values of the properties, in
+   *         the given order
+   */
+  List<Object[]> findProperties(String... properties);
+
+  /**
+   * Find the values of the given properties of all domain objects and map them
+   * onto DTO's, without hydrating the domain objects themselves.
+   * 
+   * @param dtoClass
+   *          the class of the DTO, it needs a public no-arg constructor and a
+   *          setter for each property
+   * @param properties
+   *          the names of the properties
+   * @return per domain object a DTO with the values of the properties
+   */
+  <D> List<D> findProperties(Class<D> dtoClass, String... properties);
+
   Class<T> getPersistentClass();
 
   void detachFromSession(T o);
 
   int getCount();
 
+  /**
+   * Get the number of domain objects as estimated by the statistics of the
+   * database (MySQL's information_schema), without scanning the table. Falls
+   * back to {@link #getCount()} when the database has no such statistics.
+   * 
+   * @return the estimated number of domain objects
+   */
+  int getApproximateCount();
+
   void saveOrUpdate(Collection<T> coll);
 
   Criteria createCriteria();
  
   List<T> findByExample(T exampleInstance, String[] excludes);
+
+  /**
+   * Find a page of domain objects using keyset (seek) pagination on the
+   * primary key. Unlike OFFSET based paging the cost of a page does not depend
+   * on how deep into the result the page is.
+   * 
+   * @param afterId
+   *          the id of the last domain object of the previous page, or
+   *          {@literal null} for the first page
+   * @param pageSize
+   *          the maximum number of domain objects to return
+   * @param sortOrder
+   *          the direction in which the ids are ordered
+   * @return at most pageSize domain objects following afterId
+   */
+  List<T> findPage(Long afterId, int pageSize, SortOrder sortOrder);
+
+  /**
+   * Find a page of domain objects using keyset (seek) pagination on the given
+   * (non-null) property, using the primary key as tie breaker.
+   * 
+   * @param sortProperty
+   *          the property to order on
+   * @param afterValue
+   *          the value of sortProperty of the last domain object of the
+   *          previous page, must not be {@literal null} if afterId is given
+   * @param afterId
+   *          the id of the last domain object of the previous page, or
+   *          {@literal null} for the first page
+   * @param pageSize
+   *          the maximum number of domain objects to return
+   * @param sortOrder
+   *          the direction in which sortProperty and the ids are ordered
+   * @return at most pageSize domain objects following the cursor
+   */
+  List<T> findPage(String sortProperty, Object afterValue, Long afterId, int pageSize, SortOrder sortOrder);
+
+  /**
+   * Walk all domain objects with a forward-only cursor, without loading them
+   * all in memory. Processed domain objects are evicted from the session in
+   * chunks, so memory use is bounded by the chunk size and not by the size of
+   * the table.
+   * 
+   * @param callback
+   *          the callback that is invoked for each domain object
+   * @return the number of domain objects processed
+   */
+  long scrollAll(DomainObjectCallback<T> callback);
+
+  /**
+   * Save or update a (large) collection of domain objects. The session is
+   * flushed every batch and the domain objects of the batch are evicted, so
+   * the first-level cache does not grow with the size of the collection and
+   * the statements can be sent to the database in JDBC batches. Note that the
+   * domain objects of the collection are detached from the session
+   * afterwards, and that each flush also writes the pending changes of other
+   * domain objects in the session (which do stay attached).
+   * 
+   * @param coll
+   *          the domain objects to save or update
+   * @return the number of domain objects written
+   */
+  int bulkSaveOrUpdate(Collection<T> coll);
+
+  /**
+   * Delete all domain objects matching the where clause with a single DML
+   * statement, without loading them. Note that this bypasses the session and
+   * does not cascade.
+   * 
+   * @param whereClause
+   *          HQL condition using positional (?) parameters, e.g.
+   *          <code>created &lt; ?</code>
+   * @param params
+   *          the values of the positional parameters
+   * @return the number of deleted rows
+   */
+  int deleteWhere(String whereClause, Object... params);
+
+  /**
+   * Update all domain objects matching the where clause with a single DML
+   * statement, without loading them. Note that this bypasses the session:
+   * domain objects already in the session are not refreshed.
+   * 
+   * @param assignments
+   *          the new values, keyed by property name
+   * @param whereClause
+   *          HQL condition using positional (?) parameters
+   * @param params
+   *          the values of the positional parameters in the where clause
+   * @return the number of updated rows
+   */
+  int updateWhere(Map<String, Object> assignments, String whereClause, Object... params);
+
+  /**
+   * Delete the domain objects with the given primary keys, using as few
+   * statements as possible (large collections are split into chunks of IN
+   * clauses). Like {@link #deleteWhere(String, Object...)} this bypasses the
+   * session and does not cascade.
+   * 
+   * @param ids
+   *          the primary keys
+   * @return the number of deleted rows
+   */
+  int deleteByIds(Collection<Long> ids);
 }
\ No newline at end of file
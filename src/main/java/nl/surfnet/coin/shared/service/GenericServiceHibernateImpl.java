@@ -15,20 +15,67 @@
  */
 package nl.surfnet.coin.shared.service;
 
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.hibernate.Criteria;
+import org.hibernate.EntityMode;
+import org.hibernate.FlushMode;
+import org.hibernate.HibernateException;
+import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.SessionFactory;
 import org.hibernate.classic.Session;
+import org.hibernate.criterion.BetweenExpression;
 import org.hibernate.criterion.Criterion;
+import org.hibernate.criterion.EmptyExpression;
 import org.hibernate.criterion.Example;
+import org.hibernate.criterion.InExpression;
+import org.hibernate.criterion.NotEmptyExpression;
+import org.hibernate.criterion.NotNullExpression;
+import org.hibernate.criterion.NullExpression;
 import org.hibernate.criterion.Order;
+import org.hibernate.criterion.ProjectionList;
+import org.hibernate.criterion.Projections;
+import org.hibernate.criterion.PropertyExpression;
+import org.hibernate.criterion.Restrictions;
+import org.hibernate.criterion.SimpleExpression;
+import org.hibernate.engine.EntityKey;
+import org.hibernate.engine.PersistenceContext;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.jdbc.Work;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.stat.SecondLevelCacheStatistics;
+import org.hibernate.stat.Statistics;
+import org.hibernate.transform.Transformers;
+import org.hibernate.type.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.dao.support.DataAccessUtils;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.Assert;
+import org.springframework.util.ReflectionUtils;
 
 import nl.surfnet.coin.shared.domain.DomainObject;
 
@@ -40,6 +87,42 @@ import nl.surfnet.coin.shared.domain.DomainObject;
 @Transactional
 public class GenericServiceHibernateImpl<T extends DomainObject> implements GenericService<T> {
 
+    private static final Logger LOG = LoggerFactory.getLogger(GenericServiceHibernateImpl.class);
+
+    /*
+     * The primary key property of all DomainObjects
+     */
+    protected static final String ID_PROPERTY = "id";
+
+    /*
+     * Default number of domain objects that are kept in the session while scrolling
+     */
+    private static final int DEFAULT_SCROLL_CHUNK_SIZE = 100;
+
+    /*
+     * Default number of domain objects written between flushes in bulkSaveOrUpdate
+     */
+    private static final int DEFAULT_BATCH_SIZE = 50;
+
+    /*
+     * Default maximum number of values in a single IN clause
+     */
+    private static final int DEFAULT_IN_CLAUSE_CHUNK_SIZE = 500;
+
+    /*
+     * Criterion's whose fields hold everything that determines their result
+     */
+    private static final List<Class<?>> VALUE_CRITERIA = Arrays.<Class<?>>asList(SimpleExpression.class,
+            InExpression.class, NullExpression.class, NotNullExpression.class, BetweenExpression.class,
+            PropertyExpression.class, EmptyExpression.class, NotEmptyExpression.class);
+
+    private static final ReflectionUtils.FieldFilter INSTANCE_FIELDS = new ReflectionUtils.FieldFilter() {
+        @Override
+        public boolean matches(Field field) {
+            return !Modifier.isStatic(field.getModifiers());
+        }
+    };
+
     @Autowired
     private SessionFactory portalSessionFactory;
 
@@ -48,6 +131,28 @@ public class GenericServiceHibernateImpl<T extends DomainObject> implements Gene
      */
     private Class<T> persistentClass;
 
+    private int scrollChunkSize = DEFAULT_SCROLL_CHUNK_SIZE;
+
+    private Integer scrollFetchSize;
+
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    private int inClauseChunkSize = DEFAULT_IN_CLAUSE_CHUNK_SIZE;
+
+    private boolean readOnlyQueries = true;
+
+    private long countCacheMillis;
+
+    private boolean cacheable;
+
+    private String queryCacheRegion;
+
+    private int resultCacheSize;
+
+    private long resultCacheMillis;
+
+    private volatile CriteriaResultCache resultCache;
+
     /**
      * Constructor
      * 
@@ -65,6 +170,7 @@ public class GenericServiceHibernateImpl<T extends DomainObject> implements Gene
     @Override
     public void delete(T o) {
         portalSessionFactory.getCurrentSession().delete(o);
+        writeOccurred();
     }
 
     /*
@@ -84,8 +190,9 @@ public class GenericServiceHibernateImpl<T extends DomainObject> implements Gene
      * @see nl.surfnet.coin.service.GenericService#findAll()
      */
     @Override
+    @Transactional(readOnly = true)
     public List<T> findAll() {
-        return findByCriteria();
+        return findCacheable(Collections.<Criterion>emptyList(), Collections.<Object>singletonList("all"));
     }
 
     /*
@@ -95,6 +202,7 @@ public class GenericServiceHibernateImpl<T extends DomainObject> implements Gene
      * nl.surfnet.coin.service.GenericService#findByExample(nl.surfnet.coin.domain.DomainObject)
      */
     @Override
+    @Transactional(readOnly = true)
     public List<T> findByExample(T exampleInstance) {
         return findByExample(exampleInstance, new String[]{});
     }
@@ -106,12 +214,13 @@ public class GenericServiceHibernateImpl<T extends DomainObject> implements Gene
      * nl.surfnet.coin.service.GenericService#findByExample(nl.surfnet.coin.domain.DomainObject)
      */
     @Override
+    @Transactional(readOnly = true)
     public List<T> findByExample(T exampleInstance, String[] excludes) {
         Example create = Example.create(exampleInstance);
         for (String name : excludes) {
           create.excludeProperty(name);
         }
-        return findByCriteria(create);
+        return findCacheable(Collections.<Criterion>singletonList(create), exampleKey(exampleInstance, excludes));
     }
 
     /**
@@ -135,8 +244,179 @@ public class GenericServiceHibernateImpl<T extends DomainObject> implements Gene
      * @param orderList List of {@link Order}'s
      * @return Sorted list of domain objects
      */
-    @SuppressWarnings("unchecked")
     protected List<T> findByCriteriaOrdered(List<Criterion> criterionList, List<Order> orderList) {
+        return findByCriteriaOrdered(criterionList, orderList, false);
+    }
+
+    /**
+     * Convenience method for subclasses to find domain objects that match the list of Criterion's in the given order,
+     * optionally loading them read-only. Hibernate keeps no snapshot of read-only domain objects and skips them when
+     * dirty checking; domain objects that were already in the session keep their own setting.
+     *
+     * @param criterionList List of {@link Criterion}'s
+     * @param orderList List of {@link Order}'s
+     * @param readOnly whether newly loaded domain objects should be read-only
+     * @return Sorted list of domain objects
+     */
+    protected List<T> findByCriteriaOrdered(List<Criterion> criterionList, List<Order> orderList, boolean readOnly) {
+        return listWithResultCache(createCriteria(criterionList, orderList, readOnly),
+                criteriaKey(criterionList, orderList), readOnly);
+    }
+
+    /*
+     * The query of findAll and findByExample, which is read-only and cacheable when configured so
+     */
+    private List<T> findCacheable(List<Criterion> criterionList, List<Object> resultCacheKey) {
+        Criteria crit = createCriteria(criterionList, Collections.<Order>emptyList(), readOnlyQueries);
+        if (cacheable) {
+            crit.setCacheable(true);
+            if (queryCacheRegion != null) {
+                crit.setCacheRegion(queryCacheRegion);
+            }
+        }
+        return listWithResultCache(crit, resultCacheKey, readOnlyQueries);
+    }
+
+    /*
+     * List the criteria, or if the result cache has the ids of an identical query, get those from the session or the
+     * second-level cache
+     */
+    @SuppressWarnings("unchecked")
+    private List<T> listWithResultCache(Criteria crit, List<Object> key, boolean readOnly) {
+        CriteriaResultCache cache = resultCache;
+        if (cache == null || key == null || !isEntityCached()) {
+            return crit.list();
+        }
+        EntityCountCache countCache = countCache();
+        countCache.markUsed();
+        long generation = countCache.generation();
+        List<Long> ids = cache.get(key, generation);
+        if (ids != null) {
+            return getCachedIds(ids, readOnly);
+        }
+        List<T> result = crit.list();
+        List<Long> resultIds = new ArrayList<Long>(result.size());
+        for (T t : result) {
+            resultIds.add(t.getId());
+        }
+        cache.put(key, generation, resultIds);
+        return result;
+    }
+
+    /*
+     * Get the domain objects of a cached result by id. Unlike a Criteria query, Session#get is served from the
+     * session and the second-level cache; only the domain objects that were evicted from it are loaded one by one.
+     */
+    @SuppressWarnings("unchecked")
+    private List<T> getCachedIds(List<Long> ids, boolean readOnly) {
+        Session session = portalSessionFactory.getCurrentSession();
+        boolean defaultReadOnly = session.isDefaultReadOnly();
+        session.setDefaultReadOnly(defaultReadOnly || readOnly);
+        try {
+            List<T> result = new ArrayList<T>(ids.size());
+            for (Long id : ids) {
+                T t = (T) session.get(getPersistentClass(), id);
+                if (t != null) {
+                    result.add(t);
+                }
+            }
+            return result;
+        } finally {
+            session.setDefaultReadOnly(defaultReadOnly);
+        }
+    }
+
+    private boolean isEntityCached() {
+        ClassMetadata metadata = portalSessionFactory.getClassMetadata(getPersistentClass());
+        return metadata instanceof EntityPersister && ((EntityPersister) metadata).hasCache();
+    }
+
+    /*
+     * Normalized form of a criteria query, or null if it cannot be normalized reliably. The key holds the typed values
+     * of the criteria, not their toString (in which for example a Date loses its milliseconds).
+     */
+    private List<Object> criteriaKey(List<Criterion> criterionList, List<Order> orderList) {
+        if (resultCache == null) {
+            return null;
+        }
+        // the criteria are and-ed, so their order does not matter
+        Set<List<Object>> criteria = new HashSet<List<Object>>(criterionList.size() * 2);
+        for (Criterion c : criterionList) {
+            if (!VALUE_CRITERIA.contains(c.getClass())) {
+                return null;
+            }
+            criteria.add(fieldValues(c));
+        }
+        List<Object> key = new ArrayList<Object>(orderList.size() + 2);
+        key.add("criteria");
+        key.add(criteria);
+        for (Order order : orderList) {
+            if (order.getClass() != Order.class) {
+                return null;
+            }
+            key.add(fieldValues(order));
+        }
+        return key;
+    }
+
+    /*
+     * The class and the values of all instance fields of a Criterion or Order
+     */
+    private static List<Object> fieldValues(final Object o) {
+        final List<Object> values = new ArrayList<Object>();
+        values.add(o.getClass());
+        ReflectionUtils.doWithFields(o.getClass(), new ReflectionUtils.FieldCallback() {
+            @Override
+            public void doWith(Field field) {
+                ReflectionUtils.makeAccessible(field);
+                values.add(keyValue(ReflectionUtils.getField(field, o)));
+            }
+        }, INSTANCE_FIELDS);
+        return values;
+    }
+
+    /*
+     * A value as part of a cache key: arrays are compared by content, and mutable dates are copied
+     */
+    private static Object keyValue(Object value) {
+        if (value instanceof Object[]) {
+            List<Object> values = new ArrayList<Object>(((Object[]) value).length);
+            for (Object element : (Object[]) value) {
+                values.add(keyValue(element));
+            }
+            return values;
+        }
+        if (value instanceof Date) {
+            return ((Date) value).clone();
+        }
+        return value;
+    }
+
+    /*
+     * Normalized form of a query by example: the properties that Example takes into account and their values
+     */
+    private List<Object> exampleKey(T exampleInstance, String[] excludes) {
+        ClassMetadata metadata = portalSessionFactory.getClassMetadata(getPersistentClass());
+        if (resultCache == null || metadata == null) {
+            return null;
+        }
+        String[] names = metadata.getPropertyNames();
+        Type[] types = metadata.getPropertyTypes();
+        Object[] values = metadata.getPropertyValues(exampleInstance, EntityMode.POJO);
+        List<String> excluded = Arrays.asList(excludes);
+        List<Object> key = new ArrayList<Object>();
+        key.add("example");
+        for (int i = 0; i < names.length; i++) {
+            // Example ignores null values and associations
+            if (values[i] != null && !types[i].isAssociationType() && !excluded.contains(names[i])) {
+                key.add(names[i]);
+                key.add(keyValue(values[i]));
+            }
+        }
+        return key;
+    }
+
+    private Criteria createCriteria(List<Criterion> criterionList, List<Order> orderList, boolean readOnly) {
         Criteria crit = portalSessionFactory.getCurrentSession().createCriteria(getPersistentClass());
         for (Criterion c : criterionList) {
             crit.add(c);
@@ -145,9 +425,282 @@ public class GenericServiceHibernateImpl<T extends DomainObject> implements Gene
             crit.addOrder(order);
         }
         crit.setResultTransformer(Criteria.DISTINCT_ROOT_ENTITY);
+        crit.setReadOnly(readOnly);
+        return crit;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see nl.surfnet.coin.shared.service.GenericService#findProperties(java.lang.String[])
+     */
+    @Override
+    public List<Object[]> findProperties(String... properties) {
+        return findPropertiesByCriteria(properties, Collections.<Criterion>emptyList(), Collections.<Order>emptyList());
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see nl.surfnet.coin.shared.service.GenericService#findProperties(java.lang.Class, java.lang.String[])
+     */
+    @Override
+    public <D> List<D> findProperties(Class<D> dtoClass, String... properties) {
+        return findPropertiesByCriteria(dtoClass, properties, Collections.<Criterion>emptyList(),
+                Collections.<Order>emptyList());
+    }
+
+    /**
+     * Convenience method for subclasses to find the values of the given properties of the domain objects that match
+     * the list of Criterion's in the given order. Only the selected columns are read and no domain objects end up in
+     * the session.
+     *
+     * @param properties the names of the properties
+     * @param criterionList List of {@link Criterion}'s
+     * @param orderList List of {@link Order}'s
+     * @return per domain object an array with the values of the properties
+     */
+    protected List<Object[]> findPropertiesByCriteria(String[] properties, List<Criterion> criterionList,
+                                                      List<Order> orderList) {
+        List<?> rows = createProjectionCriteria(properties, criterionList, orderList).list();
+        List<Object[]> result = new ArrayList<Object[]>(rows.size());
+        for (Object row : rows) {
+            // a single projected property is returned as is instead of as an array
+            result.add(row instanceof Object[] ? (Object[]) row : new Object[] {row});
+        }
+        return result;
+    }
+
+    /**
+     * Convenience method for subclasses to find the values of the given properties of the domain objects that match
+     * the list of Criterion's in the given order, mapped onto DTO's.
+     *
+     * @param dtoClass the class of the DTO, it needs a public no-arg constructor and a setter for each property
+     * @param properties the names of the properties
+     * @param criterionList List of {@link Criterion}'s
+     * @param orderList List of {@link Order}'s
+     * @return per domain object a DTO with the values of the properties
+     */
+    @SuppressWarnings("unchecked")
+    protected <D> List<D> findPropertiesByCriteria(Class<D> dtoClass, String[] properties,
+                                                   List<Criterion> criterionList, List<Order> orderList) {
+        Criteria crit = createProjectionCriteria(properties, criterionList, orderList);
+        crit.setResultTransformer(Transformers.aliasToBean(dtoClass));
+        return crit.list();
+    }
+
+    private Criteria createProjectionCriteria(String[] properties, List<Criterion> criterionList,
+                                              List<Order> orderList) {
+        Assert.notEmpty(properties, "Properties must not be empty");
+        Criteria crit = portalSessionFactory.getCurrentSession().createCriteria(getPersistentClass());
+        ProjectionList projectionList = Projections.projectionList();
+        for (String property : properties) {
+            projectionList.add(Projections.property(property), property);
+        }
+        crit.setProjection(projectionList);
+        for (Criterion c : criterionList) {
+            crit.add(c);
+        }
+        for (Order order : orderList) {
+            crit.addOrder(order);
+        }
+        crit.setReadOnly(true);
+        return crit;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see nl.surfnet.coin.shared.service.GenericService#findPage(java.lang.Long, int,
+     * nl.surfnet.coin.shared.service.SortOrder)
+     */
+    @Override
+    public List<T> findPage(Long afterId, int pageSize, SortOrder sortOrder) {
+        return findPageByCriteria(Collections.<Criterion>emptyList(), null, null, afterId, pageSize, sortOrder);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see nl.surfnet.coin.shared.service.GenericService#findPage(java.lang.String, java.lang.Object,
+     * java.lang.Long, int, nl.surfnet.coin.shared.service.SortOrder)
+     */
+    @Override
+    public List<T> findPage(String sortProperty, Object afterValue, Long afterId, int pageSize, SortOrder sortOrder) {
+        Assert.hasText(sortProperty, "Sort property must not be empty");
+        return findPageByCriteria(Collections.<Criterion>emptyList(), sortProperty, afterValue, afterId, pageSize,
+                sortOrder);
+    }
+
+    /**
+     * Convenience method for subclasses to find a page of domain objects that match the list of Criterion's, using
+     * keyset pagination. The cursor (afterValue, afterId) is translated into a where clause, so the database can seek
+     * in the index on (sortProperty, id) instead of reading and skipping all preceding rows.
+     *
+     * @param criterionList List of {@link Criterion}'s
+     * @param sortProperty the property to order on, or {@literal null} to order on the id only
+     * @param afterValue the value of sortProperty of the last domain object of the previous page, which must not be
+     *        {@literal null} if afterId is given, as a null value can not be compared with
+     * @param afterId the id of the last domain object of the previous page, or {@literal null} for the first page
+     * @param pageSize the maximum number of domain objects to return
+     * @param sortOrder the direction of the ordering
+     * @return Sorted list of at most pageSize domain objects
+     */
+    @SuppressWarnings("unchecked")
+    protected List<T> findPageByCriteria(List<Criterion> criterionList, String sortProperty, Object afterValue,
+                                         Long afterId, int pageSize, SortOrder sortOrder) {
+        Assert.isTrue(pageSize > 0, "Page size must be positive");
+        boolean ascending = sortOrder != SortOrder.DESCENDING;
+        Criteria crit = portalSessionFactory.getCurrentSession().createCriteria(getPersistentClass());
+        for (Criterion c : criterionList) {
+            crit.add(c);
+        }
+        if (afterId != null) {
+            Assert.isTrue(sortProperty == null || afterValue != null, "The value of the sort property of the cursor "
+                    + "must not be null");
+            crit.add(afterCursor(sortProperty, afterValue, afterId, ascending));
+        }
+        if (sortProperty != null) {
+            crit.addOrder(ascending ? Order.asc(sortProperty) : Order.desc(sortProperty));
+        }
+        crit.addOrder(ascending ? Order.asc(ID_PROPERTY) : Order.desc(ID_PROPERTY));
+        crit.setMaxResults(pageSize);
         return crit.list();
     }
 
+    /*
+     * Restriction for all rows that come after the cursor in the given ordering
+     */
+    private Criterion afterCursor(String sortProperty, Object afterValue, Long afterId, boolean ascending) {
+        Criterion afterIdCriterion = ascending ? Restrictions.gt(ID_PROPERTY, afterId) : Restrictions.lt(ID_PROPERTY,
+                afterId);
+        if (sortProperty == null) {
+            return afterIdCriterion;
+        }
+        Criterion afterValueCriterion = ascending ? Restrictions.gt(sortProperty, afterValue) : Restrictions.lt(
+                sortProperty, afterValue);
+        return Restrictions.or(afterValueCriterion,
+                Restrictions.and(Restrictions.eq(sortProperty, afterValue), afterIdCriterion));
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see nl.surfnet.coin.shared.service.GenericService#scrollAll(nl.surfnet.coin.shared.service.DomainObjectCallback)
+     */
+    @Override
+    public long scrollAll(DomainObjectCallback<T> callback) {
+        return scrollByCriteria(Collections.<Criterion>emptyList(), Collections.<Order>emptyList(), callback);
+    }
+
+    /**
+     * Convenience method for subclasses to walk all domain objects that match the list of Criterion's in the given
+     * order, using a forward-only {@link ScrollableResults}. Every scrollChunkSize domain objects the session is flushed
+     * (unless the flush mode is manual) and the processed domain objects are evicted. Note that, unlike
+     * {@link #findByCriteriaOrdered(List, List)}, the results are not made distinct, so criteria that join fetch
+     * collections will produce a domain object more than once.
+     * <p>
+     * The JDBC driver must not read the whole result set either. On MySQL the fetch size is only honoured with
+     * <code>useCursorFetch=true</code> on the connection URL; without it the rows are streamed (fetch size
+     * {@link Integer#MIN_VALUE}), and then no other statement can be executed on the connection while scrolling, so
+     * the callback must not modify domain objects. See {@link #setScrollFetchSize(Integer)}.
+     *
+     * @param criterionList List of {@link Criterion}'s
+     * @param orderList List of {@link Order}'s
+     * @param callback the callback that is invoked for each domain object
+     * @return the number of domain objects processed
+     */
+    @SuppressWarnings("unchecked")
+    protected long scrollByCriteria(List<Criterion> criterionList, List<Order> orderList,
+                                    DomainObjectCallback<T> callback) {
+        Session session = portalSessionFactory.getCurrentSession();
+        Criteria crit = session.createCriteria(getPersistentClass());
+        for (Criterion c : criterionList) {
+            crit.add(c);
+        }
+        for (Order order : orderList) {
+            crit.addOrder(order);
+        }
+        crit.setFetchSize(scrollFetchSize(session));
+        ScrollableResults results = crit.scroll(ScrollMode.FORWARD_ONLY);
+        List<T> chunk = new ArrayList<T>(scrollChunkSize);
+        long count = 0;
+        try {
+            while (results.next()) {
+                T t = (T) results.get(0);
+                callback.process(t);
+                chunk.add(t);
+                count++;
+                if (chunk.size() >= scrollChunkSize) {
+                    evictChunk(session, chunk);
+                }
+            }
+            evictChunk(session, chunk);
+        } finally {
+            results.close();
+        }
+        return count;
+    }
+
+    private void evictChunk(Session session, List<T> chunk) {
+        if (session.getFlushMode() != FlushMode.MANUAL) {
+            session.flush();
+        }
+        for (T t : chunk) {
+            session.evict(t);
+        }
+        chunk.clear();
+    }
+
+    /**
+     * @param scrollChunkSize the number of domain objects that are kept in the session while scrolling
+     */
+    public void setScrollChunkSize(int scrollChunkSize) {
+        Assert.isTrue(scrollChunkSize > 0, "Scroll chunk size must be positive");
+        this.scrollChunkSize = scrollChunkSize;
+    }
+
+    /**
+     * @param scrollFetchSize the JDBC fetch size while scrolling, by default {@link Integer#MIN_VALUE} on MySQL
+     * without <code>useCursorFetch=true</code> and the scroll chunk size otherwise
+     */
+    public void setScrollFetchSize(Integer scrollFetchSize) {
+        this.scrollFetchSize = scrollFetchSize;
+    }
+
+    private int scrollFetchSize(Session session) {
+        if (scrollFetchSize != null) {
+            return scrollFetchSize;
+        }
+        String[] database = databaseProductNameAndUrl(session);
+        return defaultFetchSize(database[0], database[1], scrollChunkSize);
+    }
+
+    /*
+     * MySQL Connector/J reads the complete result set in memory whatever the fetch size, unless server side cursors
+     * are enabled (useCursorFetch=true) or the fetch size is Integer.MIN_VALUE, which streams the rows
+     */
+    static int defaultFetchSize(String databaseProductName, String url, int fetchSize) {
+        if ("MySQL".equalsIgnoreCase(databaseProductName)
+                && (url == null || !url.toLowerCase().contains("usecursorfetch=true"))) {
+            return Integer.MIN_VALUE;
+        }
+        return fetchSize;
+    }
+
+    private static String[] databaseProductNameAndUrl(Session session) {
+        final String[] database = new String[2];
+        session.doWork(new Work() {
+            @Override
+            public void execute(Connection connection) throws SQLException {
+                DatabaseMetaData metaData = connection.getMetaData();
+                database[0] = metaData.getDatabaseProductName();
+                database[1] = metaData.getURL();
+            }
+        });
+        return database;
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -155,8 +708,66 @@ public class GenericServiceHibernateImpl<T extends DomainObject> implements Gene
      */
     @SuppressWarnings("unchecked")
     @Override
+    @Transactional(readOnly = true)
     public T findById(Long id) {
-        return (T) portalSessionFactory.getCurrentSession().load(getPersistentClass(), id);
+        Session session = portalSessionFactory.getCurrentSession();
+        boolean defaultReadOnly = session.isDefaultReadOnly();
+        // proxies created while the session defaults to read-only are read-only once initialized
+        session.setDefaultReadOnly(defaultReadOnly || readOnlyQueries);
+        try {
+            return (T) session.load(getPersistentClass(), id);
+        } finally {
+            session.setDefaultReadOnly(defaultReadOnly);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see nl.surfnet.coin.shared.service.GenericService#findByIds(java.util.Collection)
+     */
+    @Override
+    public List<T> findByIds(Collection<Long> ids) {
+        return resolveIds(ids, false);
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<T> resolveIds(Collection<Long> ids, boolean readOnly) {
+        Session session = portalSessionFactory.getCurrentSession();
+        PersistenceContext persistenceContext = ((SessionImplementor) session).getPersistenceContext();
+        EntityPersister persister = ((SessionImplementor) session).getFactory().getEntityPersister(
+                getPersistentClass().getName());
+        Set<Long> missing = new LinkedHashSet<Long>();
+        Map<Long, T> found = new HashMap<Long, T>(ids.size() * 2);
+
+        // first serve the domain objects that are already loaded in this session, looked up by their key
+        for (Long id : ids) {
+            if (id == null || found.containsKey(id)) {
+                continue;
+            }
+            Object t = persistenceContext.getEntity(new EntityKey(id, persister, EntityMode.POJO));
+            if (t == null) {
+                missing.add(id);
+            } else {
+                found.put(id, (T) t);
+            }
+        }
+        for (List<Long> chunk : chunk(missing, inClauseChunkSize)) {
+            Criteria crit = session.createCriteria(getPersistentClass()).add(Restrictions.in(ID_PROPERTY, chunk));
+            crit.setReadOnly(readOnly);
+            for (T t : (List<T>) crit.list()) {
+                found.put(t.getId(), t);
+            }
+        }
+
+        List<T> result = new ArrayList<T>(ids.size());
+        for (Long id : ids) {
+            T t = found.get(id);
+            if (t != null) {
+                result.add(t);
+            }
+        }
+        return result;
     }
 
     /*
@@ -165,9 +776,218 @@ public class GenericServiceHibernateImpl<T extends DomainObject> implements Gene
      * @see nl.surfnet.coin.service.GenericService#getCount()
      */
     @Override
+    @Transactional(readOnly = true)
     public int getCount() {
-        return DataAccessUtils.intResult(portalSessionFactory.getCurrentSession().createQuery("select count(*) from " + getPersistentClass().getName())
-                .list());
+        if (countCacheMillis <= 0) {
+            return queryCount();
+        }
+        EntityCountCache countCache = countCache();
+        Integer cached = countCache.get(countCacheMillis);
+        if (cached != null) {
+            return cached;
+        }
+        countCache.markUsed();
+        long generation = countCache.generation();
+        int count = queryCount();
+        countCache.put(generation, count);
+        return count;
+    }
+
+    private int queryCount() {
+        return DataAccessUtils.intResult(portalSessionFactory.getCurrentSession().createQuery("select count(*) from "
+                + getPersistentClass().getName()).list());
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see nl.surfnet.coin.shared.service.GenericService#getApproximateCount()
+     */
+    @Override
+    @Transactional(readOnly = true)
+    public int getApproximateCount() {
+        ClassMetadata metadata = portalSessionFactory.getClassMetadata(getPersistentClass());
+        // only MySQL has the table statistics, and a failing query would abort the transaction on other databases
+        if (metadata instanceof AbstractEntityPersister
+                && "MySQL".equalsIgnoreCase(databaseProductNameAndUrl(portalSessionFactory.getCurrentSession())[0])) {
+            String tableName = ((AbstractEntityPersister) metadata).getTableName();
+            try {
+                Object rows = portalSessionFactory.getCurrentSession()
+                        .createSQLQuery("select table_rows from information_schema.tables "
+                                + "where table_schema = database() and table_name = ?")
+                        .setString(0, tableName)
+                        .uniqueResult();
+                if (rows instanceof Number) {
+                    return ((Number) rows).intValue();
+                }
+            } catch (HibernateException e) {
+                LOG.debug("No table statistics available for {}, falling back to an exact count: {}", tableName,
+                        e.getMessage());
+            }
+        }
+        return getCount();
+    }
+
+    /*
+     * The count cache is shared by the services of the persistent class that use the same session factory
+     */
+    private EntityCountCache countCache() {
+        return EntityCountCache.forClass(portalSessionFactory, getPersistentClass());
+    }
+
+    /**
+     * @return the number of getCount calls that were answered from the count cache
+     */
+    public long getCountCacheHits() {
+        return countCache().getHits();
+    }
+
+    /**
+     * @return the number of getCount calls that queried the database while the count cache was enabled
+     */
+    public long getCountCacheMisses() {
+        return countCache().getMisses();
+    }
+
+    /**
+     * Cache the result of {@link #getCount()} for at most the given time. The cache is shared by all services of the
+     * same persistent class and session factory, and invalidated by every write through them (once when the write happens and once when its
+     * transaction completes). Writes that bypass the services are only seen after the cache expires.
+     *
+     * @param countCacheMillis the maximum age of a cached count, 0 (the default) disables the cache
+     */
+    public void setCountCacheMillis(long countCacheMillis) {
+        this.countCacheMillis = countCacheMillis;
+    }
+
+    /**
+     * Make findAll and findByExample use the query cache. For this to have effect the session factory must have the
+     * second-level cache and the query cache enabled (<code>hibernate.cache.use_second_level_cache</code>,
+     * <code>hibernate.cache.use_query_cache</code> and for example
+     * <code>net.sf.ehcache.hibernate.EhCacheRegionFactory</code> as region factory). The persistent class itself must
+     * be cacheable as well, either with an {@link org.hibernate.annotations.Cache} annotation or by configuring the
+     * entity cache strategy and region per class, e.g. using Spring's
+     * <code>LocalSessionFactoryBean#setEntityCacheStrategies</code>. findById then is served from the second-level
+     * cache as well.
+     *
+     * @param cacheable whether query results are cached, false by default
+     */
+    public void setCacheable(boolean cacheable) {
+        this.cacheable = cacheable;
+    }
+
+    /**
+     * @param queryCacheRegion the region of the query cache, by default the standard query cache region is used
+     */
+    public void setQueryCacheRegion(String queryCacheRegion) {
+        this.queryCacheRegion = queryCacheRegion;
+    }
+
+    /**
+     * Cache the ids returned by findAll, findByExample and findByCriteria, keyed on a normalized form of the query
+     * with its typed values. On a hit the domain objects are taken from the session or the second-level cache by id
+     * instead of running the query, so the cache is only used when the persistent class is in the second-level cache
+     * (see {@link #setCacheable(boolean)}). Only queries whose criteria can be normalized reliably are cached (simple,
+     * in, between, null and property expressions). Like the count cache the entries are invalidated by every write
+     * through the services of the persistent class.
+     *
+     * @param resultCacheSize the maximum number of cached queries, 0 (the default) disables the cache
+     */
+    public void setResultCacheSize(int resultCacheSize) {
+        this.resultCacheSize = resultCacheSize;
+        initResultCache();
+    }
+
+    /**
+     * @param resultCacheMillis the maximum age of a cached query result
+     */
+    public void setResultCacheMillis(long resultCacheMillis) {
+        this.resultCacheMillis = resultCacheMillis;
+        initResultCache();
+    }
+
+    private void initResultCache() {
+        resultCache = resultCacheSize > 0 && resultCacheMillis > 0 ? new CriteriaResultCache(resultCacheSize,
+                resultCacheMillis) : null;
+    }
+
+    /**
+     * @return the number of queries that were answered from the result cache
+     */
+    public long getResultCacheHits() {
+        CriteriaResultCache cache = resultCache;
+        return cache == null ? 0 : cache.getHits();
+    }
+
+    /**
+     * @return the number of cacheable queries that were not in the result cache
+     */
+    public long getResultCacheMisses() {
+        CriteriaResultCache cache = resultCache;
+        return cache == null ? 0 : cache.getMisses();
+    }
+
+    /**
+     * Hit ratio of the second-level cache region of the persistent class. Requires
+     * <code>hibernate.generate_statistics</code>.
+     *
+     * @return the ratio of hits to hits and misses, or 0 if the persistent class is not cached or there were no
+     *         lookups yet
+     */
+    public double getEntityCacheHitRatio() {
+        ClassMetadata metadata = portalSessionFactory.getClassMetadata(getPersistentClass());
+        if (!(metadata instanceof AbstractEntityPersister)
+                || ((AbstractEntityPersister) metadata).getCacheAccessStrategy() == null) {
+            return 0;
+        }
+        String region = ((AbstractEntityPersister) metadata).getCacheAccessStrategy().getRegion().getName();
+        SecondLevelCacheStatistics statistics = portalSessionFactory.getStatistics().getSecondLevelCacheStatistics(
+                region);
+        return statistics == null ? 0 : hitRatio(statistics.getHitCount(), statistics.getMissCount());
+    }
+
+    /**
+     * Hit ratio of the query cache (of all queries in the region of this service). Requires
+     * <code>hibernate.generate_statistics</code>.
+     *
+     * @return the ratio of hits to hits and misses, or 0 if there were no lookups yet
+     */
+    public double getQueryCacheHitRatio() {
+        Statistics statistics = portalSessionFactory.getStatistics();
+        if (queryCacheRegion == null) {
+            return hitRatio(statistics.getQueryCacheHitCount(), statistics.getQueryCacheMissCount());
+        }
+        SecondLevelCacheStatistics regionStatistics = statistics.getSecondLevelCacheStatistics(queryCacheRegion);
+        return regionStatistics == null ? 0 : hitRatio(regionStatistics.getHitCount(),
+                regionStatistics.getMissCount());
+    }
+
+    private static double hitRatio(long hits, long misses) {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    /**
+     * Invalidate all cached query results of the persistent class. Invoked after every write through this service,
+     * subclasses that write in other ways should call it as well.
+     */
+    protected void writeOccurred() {
+        final EntityCountCache countCache = countCache();
+        countCache.invalidate();
+        if (!(countCache.isUsed() || countCacheMillis > 0 || resultCache != null)
+                || !TransactionSynchronizationManager.isSynchronizationActive()
+                || TransactionSynchronizationManager.hasResource(countCache)) {
+            return;
+        }
+        // a count that is queried before the write commits would otherwise be cached with the old value, the bound
+        // marker makes every further write of the transaction share this one synchronization
+        TransactionSynchronizationManager.bindResource(countCache, Boolean.TRUE);
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCompletion(int status) {
+                TransactionSynchronizationManager.unbindResourceIfPossible(countCache);
+                countCache.invalidate();
+            }
+        });
     }
 
     /*
@@ -187,7 +1007,10 @@ public class GenericServiceHibernateImpl<T extends DomainObject> implements Gene
      */
     @Override
     public Long saveOrUpdate(T t) {
-        portalSessionFactory.getCurrentSession().saveOrUpdate(t);
+        Session session = portalSessionFactory.getCurrentSession();
+        makeModifiable(session, t);
+        session.saveOrUpdate(t);
+        writeOccurred();
         return t.getId();
     }
 
@@ -197,9 +1020,180 @@ public class GenericServiceHibernateImpl<T extends DomainObject> implements Gene
      * @see nl.surfnet.coin.service.GenericService#saveOrUpdate(nl.surfnet.coin.domain.DomainObject)
      */
     public void saveOrUpdate(Collection<T> coll) {
+        Session session = portalSessionFactory.getCurrentSession();
         for (T t : coll) {
-          saveOrUpdate(t);
+          makeModifiable(session, t);
+          session.saveOrUpdate(t);
         }    
+        writeOccurred();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see nl.surfnet.coin.shared.service.GenericService#bulkSaveOrUpdate(java.util.Collection)
+     */
+    @Override
+    public int bulkSaveOrUpdate(Collection<T> coll) {
+        Session session = portalSessionFactory.getCurrentSession();
+        List<T> batch = new ArrayList<T>(Math.min(batchSize, coll.size()));
+        int count = 0;
+        for (T t : coll) {
+            makeModifiable(session, t);
+            session.saveOrUpdate(t);
+            batch.add(t);
+            count++;
+            if (batch.size() >= batchSize) {
+                flushAndEvict(session, batch);
+            }
+        }
+        flushAndEvict(session, batch);
+        writeOccurred();
+        return count;
+    }
+
+    /*
+     * Flushing writes all pending changes of the session, not only those of the batch. Only the domain objects of the
+     * batch are evicted, other domain objects of the caller stay attached.
+     */
+    private void flushAndEvict(Session session, List<T> batch) {
+        session.flush();
+        for (T t : batch) {
+            session.evict(t);
+        }
+        batch.clear();
+    }
+
+    /*
+     * A domain object that was loaded read-only is not dirty checked, and making it modifiable again would take its
+     * current (changed) state as snapshot. So detach it instead: saveOrUpdate of a detached domain object always
+     * results in an update.
+     */
+    private void makeModifiable(Session session, T t) {
+        if (t.getId() != null && session.contains(t) && session.isReadOnly(t)) {
+            session.evict(t);
+        }
+    }
+
+    /**
+     * Whether findAll, findByExample and findById load domain objects read-only (the default). Read-only domain
+     * objects that are passed to saveOrUpdate are still written.
+     *
+     * @param readOnlyQueries false to load domain objects modifiable
+     */
+    public void setReadOnlyQueries(boolean readOnlyQueries) {
+        this.readOnlyQueries = readOnlyQueries;
+    }
+
+    /**
+     * Set the number of domain objects that are written between flushes in {@link #bulkSaveOrUpdate(Collection)}.
+     * For the statements to actually be sent in JDBC batches the session factory must be configured with the same
+     * <code>hibernate.jdbc.batch_size</code> (and preferably <code>hibernate.order_inserts</code> and
+     * <code>hibernate.order_updates</code>). Hibernate does not batch inserts of entities with an identity generated
+     * id, these still benefit from the bounded session size.
+     *
+     * @param batchSize the number of domain objects between flushes
+     */
+    public void setBatchSize(int batchSize) {
+        Assert.isTrue(batchSize > 0, "Batch size must be positive");
+        this.batchSize = batchSize;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see nl.surfnet.coin.shared.service.GenericService#deleteWhere(java.lang.String, java.lang.Object[])
+     */
+    @Override
+    public int deleteWhere(String whereClause, Object... params) {
+        Assert.hasText(whereClause, "Where clause must not be empty");
+        Query query = portalSessionFactory.getCurrentSession().createQuery(
+                "delete from " + getPersistentClass().getName() + " where " + whereClause);
+        for (int i = 0; i < params.length; i++) {
+            query.setParameter(i, params[i]);
+        }
+        int deleted = query.executeUpdate();
+        writeOccurred();
+        return deleted;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see nl.surfnet.coin.shared.service.GenericService#updateWhere(java.util.Map, java.lang.String,
+     * java.lang.Object[])
+     */
+    @Override
+    public int updateWhere(Map<String, Object> assignments, String whereClause, Object... params) {
+        Assert.notEmpty(assignments, "Assignments must not be empty");
+        Assert.hasText(whereClause, "Where clause must not be empty");
+        StringBuilder hql = new StringBuilder("update ").append(getPersistentClass().getName()).append(" set ");
+        List<Object> values = new ArrayList<Object>(assignments.size() + params.length);
+        for (Iterator<Map.Entry<String, Object>> it = assignments.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, Object> assignment = it.next();
+            hql.append(assignment.getKey());
+            if (assignment.getValue() == null) {
+                // a null parameter has no type Hibernate can bind, so use a literal
+                hql.append(" = null");
+            } else {
+                hql.append(" = ?");
+                values.add(assignment.getValue());
+            }
+            if (it.hasNext()) {
+                hql.append(", ");
+            }
+        }
+        hql.append(" where ").append(whereClause);
+        Collections.addAll(values, params);
+
+        Query query = portalSessionFactory.getCurrentSession().createQuery(hql.toString());
+        for (int i = 0; i < values.size(); i++) {
+            query.setParameter(i, values.get(i));
+        }
+        int updated = query.executeUpdate();
+        writeOccurred();
+        return updated;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see nl.surfnet.coin.shared.service.GenericService#deleteByIds(java.util.Collection)
+     */
+    @Override
+    public int deleteByIds(Collection<Long> ids) {
+        Query query = portalSessionFactory.getCurrentSession().createQuery(
+                "delete from " + getPersistentClass().getName() + " where " + ID_PROPERTY + " in (:ids)");
+        int deleted = 0;
+        for (List<Long> chunk : chunk(ids, inClauseChunkSize)) {
+            deleted += query.setParameterList("ids", chunk).executeUpdate();
+        }
+        writeOccurred();
+        return deleted;
+    }
+
+    /*
+     * Split the values in lists of at most size elements
+     */
+    private static <E> List<List<E>> chunk(Collection<E> values, int size) {
+        List<List<E>> chunks = new ArrayList<List<E>>(values.size() / size + 1);
+        List<E> current = null;
+        for (E value : values) {
+            if (current == null || current.size() == size) {
+                current = new ArrayList<E>(Math.min(size, values.size()));
+                chunks.add(current);
+            }
+            current.add(value);
+        }
+        return chunks;
+    }
+
+    /**
+     * @param inClauseChunkSize the maximum number of values in a single IN clause
+     */
+    public void setInClauseChunkSize(int inClauseChunkSize) {
+        Assert.isTrue(inClauseChunkSize > 0, "IN clause chunk size must be positive");
+        this.inClauseChunkSize = inClauseChunkSize;
     }
 
     /**
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfnet.coin.shared.filter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+
+import org.junit.Test;
+
+/**
+ * Test class for {@link DelegatingServletOutputStream}
+ */
+public class DelegatingServletOutputStreamTest {
+
+  @Test
+  public void testArrayWriteIsOneCall() throws Exception {
+    CountingOutputStream target = new CountingOutputStream();
+    DelegatingServletOutputStream stream = new DelegatingServletOutputStream(target);
+    byte[] data = new byte[100000];
+    stream.write(data);
+    stream.write(data, 10, 50000);
+
+    assertEquals(2, target.writes);
+    assertEquals(150000, target.size());
+  }
+
+  @Test
+  public void testByteBufferWrite() throws Exception {
+    CountingOutputStream target = new CountingOutputStream();
+    DelegatingServletOutputStream stream = new DelegatingServletOutputStream(target);
+    byte[] data = new byte[20000];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) i;
+    }
+
+    ByteBuffer heap = ByteBuffer.wrap(data, 100, 10000);
+    assertEquals(10000, stream.write(heap));
+    assertFalse(heap.hasRemaining());
+    assertEquals(1, target.writes);
+
+    ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+    direct.put(data).flip();
+    assertEquals(20000, stream.write(direct));
+    assertFalse(direct.hasRemaining());
+
+    byte[] written = target.toByteArray();
+    assertEquals(30000, written.length);
+    assertEquals(data[100], written[0]);
+    byte[] directPart = new byte[20000];
+    System.arraycopy(written, 10000, directPart, 0, directPart.length);
+    assertArrayEquals(data, directPart);
+
+    stream.close();
+    assertFalse(stream.isOpen());
+  }
+
+  @Test(expected = ClosedChannelException.class)
+  public void testByteBufferWriteAfterClose() throws Exception {
+    DelegatingServletOutputStream stream = new DelegatingServletOutputStream(new CountingOutputStream());
+    stream.close();
+    stream.write(ByteBuffer.wrap(new byte[10]));
+  }
+
+  private static class CountingOutputStream extends ByteArrayOutputStream {
+    private int writes;
+
+    @Override
+    public synchronized void write(int b) {
+      writes++;
+      super.write(b);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+      writes++;
+      super.write(b, off, len);
+    }
+  }
+}
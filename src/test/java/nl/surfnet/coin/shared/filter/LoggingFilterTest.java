@@ -0,0 +1,474 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfnet.coin.shared.filter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import org.springframework.mock.web.MockFilterConfig;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.AppenderBase;
+import ch.qos.logback.core.read.ListAppender;
+
+/**
+ * Test class for {@link LoggingFilter}
+ */
+public class LoggingFilterTest {
+
+  private final Logger responseLog = (Logger) LoggerFactory.getLogger("nl.surfnet.coin.response");
+  private Level originalLevel;
+  private ListAppender<ILoggingEvent> responseEvents;
+
+  private LoggingFilter filter;
+
+  @Before
+  public void before() {
+    originalLevel = responseLog.getLevel();
+    responseEvents = new ListAppender<ILoggingEvent>();
+    responseEvents.start();
+    responseLog.addAppender(responseEvents);
+    filter = new LoggingFilter();
+  }
+
+  @After
+  public void after() {
+    filter.destroy();
+    responseLog.setLevel(originalLevel);
+    responseLog.setAdditive(true);
+    responseLog.detachAppender(responseEvents);
+  }
+
+  @Test
+  public void testNoCaptureBelowTrace() throws Exception {
+    responseLog.setLevel(Level.DEBUG);
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/test");
+    MockHttpServletResponse response = new MockHttpServletResponse();
+    filter.doFilter(request, response, writing("text/plain", new byte[1000]));
+
+    assertNull(request.getAttribute(LoggingFilter.OUTPUT_STREAM_COPY_ATTR));
+    assertEquals(1000, response.getContentAsByteArray().length);
+  }
+
+  @Test
+  public void testCaptureIsTruncated() throws Exception {
+    responseLog.setLevel(Level.TRACE);
+    MockFilterConfig filterConfig = new MockFilterConfig();
+    filterConfig.addInitParameter("maxCaptureSize", "10");
+    filterConfig.addInitParameter("exposeOutputStreamCopy", "true");
+    filter.init(filterConfig);
+
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/test");
+    MockHttpServletResponse response = new MockHttpServletResponse();
+    filter.doFilter(request, response, writing("application/json", "{\"entry\":[1,2,3,4,5,6,7,8,9]}".getBytes("UTF-8")));
+
+    assertTrue(lastResponseLog().endsWith("Response data: {\"entry\":[... (truncated, 29 bytes in total)"));
+    assertEquals("{\"entry\":[1,2,3,4,5,6,7,8,9]}", response.getContentAsString());
+    ByteArrayOutputStream copy = (ByteArrayOutputStream) request.getAttribute(LoggingFilter.OUTPUT_STREAM_COPY_ATTR);
+    assertEquals("{\"entry\":[", copy.toString());
+    assertTrue(((LoggingFilter.ResponseBodyCopy) copy).isTruncated());
+  }
+
+  @Test
+  public void testOutputStreamCopyIsImmutable() throws Exception {
+    responseLog.setLevel(Level.TRACE);
+    filter.setCapturePool(16, 4);
+    filter.setExposeOutputStreamCopy(true);
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/test");
+    filter.doFilter(request, new MockHttpServletResponse(), writing("text/plain", "first response".getBytes("UTF-8")));
+    ByteArrayOutputStream copy = (ByteArrayOutputStream) request.getAttribute(LoggingFilter.OUTPUT_STREAM_COPY_ATTR);
+
+    // the chunks of the first response are reused
+    filter.doFilter(new MockHttpServletRequest("GET", "/test"), new MockHttpServletResponse(), writing("text/plain",
+        "second response".getBytes("UTF-8")));
+    assertEquals("first response", copy.toString());
+    try {
+      copy.write(1);
+      fail("the copy is read-only");
+    } catch (UnsupportedOperationException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testOutputStreamCopyIsNotExposedByDefault() throws Exception {
+    responseLog.setLevel(Level.TRACE);
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/test");
+    filter.doFilter(request, new MockHttpServletResponse(), writing("text/plain", "response".getBytes("UTF-8")));
+
+    assertNull(request.getAttribute(LoggingFilter.OUTPUT_STREAM_COPY_ATTR));
+    assertTrue(lastResponseLog().endsWith("Response data: response"));
+  }
+
+  @Test
+  public void testResponseDataIsDecodedWithTheResponseCharset() throws Exception {
+    responseLog.setLevel(Level.TRACE);
+    filter.doFilter(new MockHttpServletRequest("GET", "/test"), new MockHttpServletResponse(), new FilterChain() {
+      @Override
+      public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+        response.setContentType("text/plain");
+        response.setCharacterEncoding("ISO-8859-1");
+        response.getOutputStream().write("Zo\u00eb".getBytes("ISO-8859-1"));
+      }
+    });
+
+    assertTrue(lastResponseLog().endsWith("Response data: Zo\u00eb"));
+  }
+
+  @Test
+  public void testBinaryContentTypeIsBypassed() throws Exception {
+    responseLog.setLevel(Level.TRACE);
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/test");
+    MockHttpServletResponse response = new MockHttpServletResponse();
+    filter.doFilter(request, response, writing("image/png", new byte[1000]));
+
+    assertTrue(lastResponseLog().endsWith("Response data of content type image/png not logged"));
+    assertEquals(1000, response.getContentAsByteArray().length);
+  }
+
+  @Test
+  public void testContentTypeSetAfterGetOutputStreamIsBypassed() throws Exception {
+    responseLog.setLevel(Level.TRACE);
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/test");
+    MockHttpServletResponse response = new MockHttpServletResponse();
+    filter.doFilter(request, response, new FilterChain() {
+      @Override
+      public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+        ServletOutputStream outputStream = response.getOutputStream();
+        outputStream.write(new byte[10]);
+        response.setContentType("image/png");
+        outputStream.write(new byte[990]);
+      }
+    });
+
+    assertTrue(lastResponseLog().endsWith("Response data of content type image/png not logged"));
+    assertNull(request.getAttribute(LoggingFilter.OUTPUT_STREAM_COPY_ATTR));
+    assertEquals(1000, response.getContentAsByteArray().length);
+  }
+
+  @Test
+  public void testContentTypeHeaderIsBypassed() throws Exception {
+    responseLog.setLevel(Level.TRACE);
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/test");
+    MockHttpServletResponse response = new MockHttpServletResponse();
+    filter.doFilter(request, response, new FilterChain() {
+      @Override
+      public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+        ServletOutputStream outputStream = response.getOutputStream();
+        outputStream.write(new byte[10]);
+        ((HttpServletResponse) response).setHeader("content-type", "application/pdf");
+        outputStream.write(new byte[990]);
+      }
+    });
+
+    assertTrue(lastResponseLog().endsWith("not logged"));
+    assertNull(request.getAttribute(LoggingFilter.OUTPUT_STREAM_COPY_ATTR));
+    assertEquals(1000, response.getContentAsByteArray().length);
+  }
+
+  @Test
+  public void testOutputStreamCopyIsExposedAfterTheChain() throws Exception {
+    responseLog.setLevel(Level.TRACE);
+    filter.setExposeOutputStreamCopy(true);
+    final MockHttpServletRequest request = new MockHttpServletRequest("GET", "/test");
+    final Object[] insideChain = new Object[1];
+    filter.doFilter(request, new MockHttpServletResponse(), new FilterChain() {
+      @Override
+      public void doFilter(ServletRequest req, ServletResponse response) throws IOException, ServletException {
+        response.getOutputStream().write("response".getBytes("UTF-8"));
+        insideChain[0] = request.getAttribute(LoggingFilter.OUTPUT_STREAM_COPY_ATTR);
+      }
+    });
+
+    assertNull(insideChain[0]);
+    assertEquals("response", request.getAttribute(LoggingFilter.OUTPUT_STREAM_COPY_ATTR).toString());
+  }
+
+  @Test
+  public void testCaptureAllocatesNoChunksOnceWarm() throws Exception {
+    responseLog.setLevel(Level.TRACE);
+    // do not format the response data
+    responseLog.setAdditive(false);
+    responseLog.detachAppender(responseEvents);
+    filter.setCapturePool(LoggingFilter.DEFAULT_CAPTURE_CHUNK_SIZE, LoggingFilter.DEFAULT_CAPTURE_POOL_SIZE);
+    FilterChain chain = writing("application/json", new byte[LoggingFilter.DEFAULT_MAX_CAPTURE_SIZE]);
+    int chunksPerRequest = LoggingFilter.DEFAULT_MAX_CAPTURE_SIZE / LoggingFilter.DEFAULT_CAPTURE_CHUNK_SIZE;
+
+    // with the default configuration the copy is not exposed, so it is not copied out of the pooled chunks
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/test");
+    filter.doFilter(request, new MockHttpServletResponse(), chain);
+    assertNull(request.getAttribute(LoggingFilter.OUTPUT_STREAM_COPY_ATTR));
+    assertEquals(chunksPerRequest, filter.getCapturePool().getAllocated());
+    for (int i = 0; i < 100; i++) {
+      filter.doFilter(new MockHttpServletRequest("GET", "/test"), new MockHttpServletResponse(), chain);
+    }
+    assertEquals("no chunk is allocated after the first request", chunksPerRequest,
+        filter.getCapturePool().getAllocated());
+    assertEquals(100 * chunksPerRequest, filter.getCapturePool().getReused());
+  }
+
+  private String lastResponseLog() {
+    return responseEvents.list.get(responseEvents.list.size() - 1).getFormattedMessage();
+  }
+
+  @Test
+  public void testAsyncLogging() throws Exception {
+    Logger requestLog = (Logger) LoggerFactory.getLogger("nl.surfnet.coin.request");
+    Level originalRequestLevel = requestLog.getLevel();
+    ListAppender<ILoggingEvent> requestEvents = new ListAppender<ILoggingEvent>();
+    requestEvents.start();
+    requestLog.addAppender(requestEvents);
+    try {
+      requestLog.setLevel(Level.TRACE);
+      responseLog.setLevel(Level.TRACE);
+      MockFilterConfig filterConfig = new MockFilterConfig();
+      filterConfig.addInitParameter("asyncLogQueueSize", "100");
+      filter.init(filterConfig);
+
+      MockHttpServletRequest request = new MockHttpServletRequest("GET", "/test");
+      request.addHeader("Accept", "application/json");
+      filter.doFilter(request, new MockHttpServletResponse(), new FilterChain() {
+        @Override
+        public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+          response.setContentType("application/json");
+          response.setCharacterEncoding("UTF-8");
+          response.getOutputStream().write("{\"name\":\"Zo\u00eb\"}".getBytes("UTF-8"));
+        }
+      });
+      filter.destroy();
+
+      assertEquals("Accept: application/json", requestEvents.list.get(1).getFormattedMessage().split(" ", 3)[2]);
+      assertTrue(lastResponseLog().endsWith("Response data: {\"name\":\"Zo\u00eb\"}"));
+      assertEquals("LoggingFilter-async-log", responseEvents.list.get(0).getThreadName());
+      assertEquals(0, filter.getDroppedLogRecords());
+    } finally {
+      requestLog.setLevel(originalRequestLevel);
+      requestLog.detachAppender(requestEvents);
+    }
+  }
+
+  @Test
+  public void testAsyncLoggingWithMdcAndPooledChunks() throws Exception {
+    responseLog.setLevel(Level.TRACE);
+    filter.setExposeOutputStreamCopy(false);
+    filter.setCapturePool(1024, 16);
+    filter.setAsyncLogQueueSize(100);
+    MDC.put("user", "john.doe");
+    try {
+      filter.doFilter(new MockHttpServletRequest("GET", "/test"), new MockHttpServletResponse(), writing(
+          "text/plain", "response".getBytes("UTF-8")));
+    } finally {
+      MDC.remove("user");
+    }
+    filter.destroy();
+
+    ILoggingEvent event = responseEvents.list.get(responseEvents.list.size() - 1);
+    assertTrue(event.getFormattedMessage().endsWith("Response data: response"));
+    assertEquals("LoggingFilter-async-log", event.getThreadName());
+    assertEquals("john.doe", event.getMDCPropertyMap().get("user"));
+
+    filter.setAsyncLogQueueSize(0);
+    filter.doFilter(new MockHttpServletRequest("GET", "/test"), new MockHttpServletResponse(), writing("text/plain",
+        "response".getBytes("UTF-8")));
+    assertEquals("the background thread returned the chunk to the pool", 1, filter.getCapturePool().getReused());
+  }
+
+  @Test
+  public void testAsyncLoggingDropsWhenQueueIsFull() throws Exception {
+    // only queue response log records
+    Logger requestLog = (Logger) LoggerFactory.getLogger("nl.surfnet.coin.request");
+    Level originalRequestLevel = requestLog.getLevel();
+    requestLog.setLevel(Level.INFO);
+    responseLog.setLevel(Level.DEBUG);
+    final CountDownLatch logging = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    AppenderBase<ILoggingEvent> blockingAppender = new AppenderBase<ILoggingEvent>() {
+      @Override
+      protected void append(ILoggingEvent event) {
+        logging.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    };
+    blockingAppender.start();
+    responseLog.addAppender(blockingAppender);
+    try {
+      filter.setAsyncLogQueueSize(1);
+      filter.doFilter(new MockHttpServletRequest("GET", "/test"), new MockHttpServletResponse(), writing(
+          "text/plain", new byte[10]));
+      logging.await();
+      for (int i = 0; i < 4; i++) {
+        filter.doFilter(new MockHttpServletRequest("GET", "/test"), new MockHttpServletResponse(), writing(
+            "text/plain", new byte[10]));
+      }
+      assertEquals(1, filter.getQueuedLogRecords());
+      assertEquals(3, filter.getDroppedLogRecords());
+    } finally {
+      release.countDown();
+      filter.destroy();
+      responseLog.detachAppender(blockingAppender);
+      requestLog.setLevel(originalRequestLevel);
+    }
+    assertEquals(2, responseEvents.list.size());
+  }
+
+  @Test
+  public void testRequestIdsAreUnique() throws Exception {
+    assertEquals(8 * 10000, generateRequestIds(filter, 8, 10000).size());
+  }
+
+  @Test
+  public void testOverriddenGenerateRequestIdIsSynchronized() throws Exception {
+    LoggingFilter notThreadSafe = new LoggingFilter() {
+      private long counter;
+
+      @Override
+      protected String generateRequestId() {
+        return String.valueOf(counter++);
+      }
+    };
+    assertEquals(8 * 10000, generateRequestIds(notThreadSafe, 8, 10000).size());
+  }
+
+  @Test
+  public void testRequestIdsAreUniqueAcrossFilters() throws Exception {
+    Set<String> requestIds = generateRequestIds(filter, 4, 1000);
+    requestIds.addAll(generateRequestIds(new LoggingFilter(), 4, 1000));
+    assertEquals(2 * 4 * 1000, requestIds.size());
+  }
+
+  /*
+   * Generate the ids on several threads at once
+   */
+  private Set<String> generateRequestIds(final LoggingFilter loggingFilter, int threads, final int ids)
+      throws InterruptedException {
+    final Set<String> requestIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    final CountDownLatch start = new CountDownLatch(1);
+    Thread[] workers = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      workers[i] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int j = 0; j < ids; j++) {
+            requestIds.add(loggingFilter.nextRequestId());
+          }
+        }
+      });
+      workers[i].start();
+    }
+    start.countDown();
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    return requestIds;
+  }
+
+  @Test
+  public void testBulkWritesArePassedOnInOneCall() throws Exception {
+    final byte[] chunk = new byte[8192];
+    final int chunks = 128;
+    FilterChain largeResponse = new FilterChain() {
+      @Override
+      public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+        response.setContentType("application/json");
+        for (int i = 0; i < chunks; i++) {
+          response.getOutputStream().write(chunk);
+        }
+      }
+    };
+    // do not print the response data
+    responseLog.setAdditive(false);
+    for (Level level : new Level[] { Level.DEBUG, Level.TRACE }) {
+      responseLog.setLevel(level);
+      CountingResponse response = new CountingResponse();
+      filter.doFilter(new MockHttpServletRequest("GET", "/test"), response, largeResponse);
+      assertEquals(level.toString(), chunks, response.bulkWrites);
+      assertEquals(level.toString(), 0, response.byteWrites);
+      assertEquals(chunk.length * (long) chunks, response.bytes);
+    }
+  }
+
+  /*
+   * Response that counts the writes to its output stream
+   */
+  private static class CountingResponse extends MockHttpServletResponse {
+    private int byteWrites;
+    private int bulkWrites;
+    private long bytes;
+
+    private final ServletOutputStream outputStream = new ServletOutputStream() {
+      @Override
+      public void write(int b) {
+        byteWrites++;
+        bytes++;
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) {
+        bulkWrites++;
+        bytes += len;
+      }
+    };
+
+    @Override
+    public ServletOutputStream getOutputStream() {
+      return outputStream;
+    }
+  }
+
+  private FilterChain writing(final String contentType, final byte[] body) {
+    return new FilterChain() {
+      @Override
+      public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+        response.setContentType(contentType);
+        response.getOutputStream().write(body);
+      }
+    };
+  }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfnet.coin.shared.log;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.URLEncoder;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletRequestEvent;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockServletContext;
+
+/**
+ * Test class for {@link ApiCallLogContextListener}
+ */
+public class ApiCallLogContextListenerTest {
+
+  private final MockServletContext servletContext = new MockServletContext();
+  private final ApiCallLogContextListener listener = new ApiCallLogContextListener();
+
+  @After
+  public void after() {
+    listener.requestDestroyed(new ServletRequestEvent(servletContext, new MockHttpServletRequest()));
+  }
+
+  @Test
+  public void testCapturedRequest() throws Exception {
+    MockHttpServletRequest request = request("/social/rest/people/@me");
+    request.setQueryString("fields=name");
+    request.setServerPort(8080);
+    listener.requestInitialized(new ServletRequestEvent(servletContext, request));
+
+    ApiCallLog apiCallLog = ApiCallLogContextListener.getApiCallLog();
+    assertEquals(URLEncoder.encode("http://localhost:8080/social/rest/people/@me?fields=name", "utf-8"),
+        apiCallLog.getResourceUrl());
+    assertEquals("127.0.0.1", apiCallLog.getIpAddress());
+    assertSame(apiCallLog, ApiCallLogContextListener.getApiCallLog());
+  }
+
+  @Test
+  public void testIncludesAndExcludesFromContextParameters() throws Exception {
+    servletContext.addInitParameter(ApiCallLogContextListener.INCLUDES_PARAM, "/rest/**, /api/**");
+    servletContext.addInitParameter(ApiCallLogContextListener.EXCLUDES_PARAM, "/api/health");
+    listener.contextInitialized(new ServletContextEvent(servletContext));
+
+    listener.requestInitialized(new ServletRequestEvent(servletContext, request("/social/rest/people/@me")));
+    assertEquals(URLEncoder.encode("http://localhost/social/rest/people/@me", "utf-8"),
+        ApiCallLogContextListener.getApiCallLog().getResourceUrl());
+
+    listener.requestInitialized(new ServletRequestEvent(servletContext, request("/social/api/health")));
+    assertNull(ApiCallLogContextListener.getApiCallLog().getResourceUrl());
+
+    listener.requestInitialized(new ServletRequestEvent(servletContext, request("/social/css/main.css")));
+    assertNull(ApiCallLogContextListener.getApiCallLog().getResourceUrl());
+  }
+
+  @Test
+  public void testApiCallLogIsUnboundAfterEachRequest() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      final ThreadLocal<?> holder = apiCallLogHolder();
+      final boolean[] entryLeft = new boolean[1];
+      ApiCallLog[] bound = executor.submit(new Callable<ApiCallLog[]>() {
+        @Override
+        public ApiCallLog[] call() throws Exception {
+          ApiCallLog[] bound = new ApiCallLog[4];
+          for (int i = 0; i < 100; i++) {
+            ServletRequestEvent event = new ServletRequestEvent(servletContext, request("/social/rest/people/@me"));
+            listener.requestInitialized(event);
+            if (i < 2) {
+              bound[i * 2] = ApiCallLogContextListener.getBoundApiCallLog();
+            }
+            listener.requestDestroyed(event);
+            // set(null) would leave an entry with a null value in the map of the pooled thread, checked before
+            // get() adds one again
+            entryLeft[0] |= hasThreadLocalEntry(holder);
+            if (i < 2) {
+              bound[i * 2 + 1] = ApiCallLogContextListener.getBoundApiCallLog();
+            }
+          }
+          return bound;
+        }
+      }).get();
+      assertNotNull(bound[0]);
+      assertNull(bound[1]);
+      assertNotSame("every request gets its own ApiCallLog", bound[0], bound[2]);
+      assertNull(bound[3]);
+      assertFalse("the entry is removed from the thread local map", entryLeft[0]);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private static ThreadLocal<?> apiCallLogHolder() throws Exception {
+    Field field = ApiCallLogContextListener.class.getDeclaredField("apiCallLogHolder");
+    field.setAccessible(true);
+    return (ThreadLocal<?>) field.get(null);
+  }
+
+  /*
+   * Whether the ThreadLocalMap of the current thread has an entry for the thread local, get() can not tell an entry
+   * with a null value from no entry
+   */
+  private static boolean hasThreadLocalEntry(ThreadLocal<?> threadLocal) throws Exception {
+    Field threadLocals = Thread.class.getDeclaredField("threadLocals");
+    threadLocals.setAccessible(true);
+    Object map = threadLocals.get(Thread.currentThread());
+    if (map == null) {
+      return false;
+    }
+    Method getEntry = map.getClass().getDeclaredMethod("getEntry", ThreadLocal.class);
+    getEntry.setAccessible(true);
+    return getEntry.invoke(map, threadLocal) != null;
+  }
+
+  @Test
+  public void testAsyncWorkIsBoundByWrap() throws Exception {
+    final MockHttpServletRequest request = request("/social/rest/people/@me");
+    ServletRequestEvent event = new ServletRequestEvent(servletContext, request);
+    listener.requestInitialized(event);
+    ApiCallLog apiCallLog = ApiCallLogContextListener.getBoundApiCallLog();
+    apiCallLog.setUserId("john.doe");
+    Callable<ApiCallLog> asyncWork = ApiCallLogContextListener.wrap(new Callable<ApiCallLog>() {
+      @Override
+      public ApiCallLog call() {
+        return ApiCallLogContextListener.getBoundApiCallLog();
+      }
+    });
+    // the container thread returns after startAsync
+    listener.requestDestroyed(event);
+    assertNull(ApiCallLogContextListener.getBoundApiCallLog());
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      ApiCallLog dispatched = executor.submit(asyncWork).get();
+      assertSame(apiCallLog, dispatched);
+      assertEquals("john.doe", dispatched.getUserId());
+      assertNull("the async thread is released after the work", executor.submit(new Callable<ApiCallLog>() {
+        @Override
+        public ApiCallLog call() {
+          return ApiCallLogContextListener.getBoundApiCallLog();
+        }
+      }).get());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testWrappedTaskRunsWithApiCallLog() throws Exception {
+    listener.requestInitialized(new ServletRequestEvent(servletContext, request("/social/rest/people/@me")));
+    final ApiCallLog apiCallLog = ApiCallLogContextListener.getBoundApiCallLog();
+    final ApiCallLog[] seen = new ApiCallLog[1];
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      executor.submit(ApiCallLogContextListener.wrap(new Runnable() {
+        @Override
+        public void run() {
+          seen[0] = ApiCallLogContextListener.getBoundApiCallLog();
+        }
+      })).get();
+      assertSame(apiCallLog, seen[0]);
+
+      Future<ApiCallLog> afterwards = executor.submit(new Callable<ApiCallLog>() {
+        @Override
+        public ApiCallLog call() {
+          return ApiCallLogContextListener.getBoundApiCallLog();
+        }
+      });
+      assertNull("the executor thread is released after the task", afterwards.get());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testRequestUrlIsOnlyBuiltWhenRead() throws Exception {
+    CountingRequest request = new CountingRequest("/social/rest/people/@me");
+    request.setQueryString("fields=name,emails&count=10");
+    ServletRequestEvent event = new ServletRequestEvent(servletContext, request);
+    listener.requestInitialized(event);
+    listener.requestDestroyed(event);
+    assertEquals("the container does not build the URL", 0, request.requestUrlCalls);
+
+    listener.requestInitialized(event);
+    ApiCallLog apiCallLog = ApiCallLogContextListener.getApiCallLog();
+    assertEquals(URLEncoder.encode("http://localhost/social/rest/people/@me?fields=name,emails&count=10", "utf-8"),
+        apiCallLog.getResourceUrl());
+    assertSame("the URL is built once", apiCallLog, ApiCallLogContextListener.getApiCallLog());
+    assertEquals(0, request.requestUrlCalls);
+    listener.requestDestroyed(event);
+  }
+
+  /*
+   * Request that counts the calls to getRequestURL
+   */
+  private static class CountingRequest extends MockHttpServletRequest {
+    private int requestUrlCalls;
+
+    private CountingRequest(String requestURI) {
+      super("GET", requestURI);
+      setContextPath("/social");
+    }
+
+    @Override
+    public StringBuffer getRequestURL() {
+      requestUrlCalls++;
+      return super.getRequestURL();
+    }
+  }
+
+  private MockHttpServletRequest request(String requestURI) {
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", requestURI);
+    request.setContextPath("/social");
+    return request;
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfnet.coin.shared.log;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import nl.surfnet.coin.db.AbstractInMemoryDatabaseTest;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test class for {@link ApiCallLogRetentionService}
+ */
+public class ApiCallLogRetentionServiceTest extends AbstractInMemoryDatabaseTest {
+
+  private static final long DAY = 24L * 60L * 60L * 1000L;
+
+  private ApiCallLogServiceImpl logService;
+  private ApiCallLogRetentionService retentionService;
+
+  @Before
+  public void init() {
+    logService = new ApiCallLogServiceImpl(getJdbcTemplate());
+    retentionService = new ApiCallLogRetentionService(getJdbcTemplate());
+    retentionService.setMaxAgeMillis(30 * DAY);
+    retentionService.setBatchSize(3);
+    retentionService.setPauseMillis(0);
+
+    long now = System.currentTimeMillis();
+    List<ApiCallLog> logs = new ArrayList<ApiCallLog>();
+    for (int i = 0; i < 10; i++) {
+      logs.add(apiCallLog(now - 60 * DAY));
+    }
+    for (int i = 0; i < 4; i++) {
+      logs.add(apiCallLog(now - DAY));
+    }
+    logService.saveApiCallLogs(logs);
+  }
+
+  @Test
+  public void testPurgeInBatches() {
+    assertEquals(10, retentionService.purge());
+    assertEquals(4, logService.findApiCallLog("retentionsp").size());
+    assertEquals("rows without timestamp are kept", 2, logService.findApiCallLog("testsp1").size());
+
+    assertEquals(0, retentionService.purge());
+    assertEquals(0, retentionService.getLastPurged());
+    assertEquals(10, retentionService.getTotalPurged());
+  }
+
+  @Test
+  public void testPurgeWithArchive() {
+    retentionService.setArchiveTable("api_call_log_archive");
+    assertEquals(10, retentionService.purge());
+    assertEquals(10, getJdbcTemplate().queryForInt("select count(*) from api_call_log_archive"));
+    assertEquals(4, logService.findApiCallLog("retentionsp").size());
+
+    assertEquals(4, retentionService.purge(new Date()));
+    assertEquals(14, getJdbcTemplate().queryForInt(
+        "select count(*) from api_call_log_archive where spentity_id = 'retentionsp'"));
+  }
+
+  @Test
+  public void testArchiveKeepsCallCount() {
+    ApiCallLogSchemaManager schemaManager = new ApiCallLogSchemaManager(getJdbcTemplate());
+    schemaManager.createCallCountColumn();
+    logService.setCallCountColumn(true);
+    ApiCallLog coalesced = apiCallLog(System.currentTimeMillis() - 60 * DAY);
+    coalesced.setCallCount(5);
+    logService.saveApiCallLog(coalesced);
+
+    retentionService.setArchiveTable("api_call_log_archive");
+    retentionService.setCallCountColumn(true);
+    assertEquals(11, retentionService.purge());
+    assertEquals("the rows saved before the column existed count as one request", 15, getJdbcTemplate().queryForInt(
+        "select sum(call_count) from api_call_log_archive"));
+  }
+
+  private ApiCallLog apiCallLog(long time) {
+    ApiCallLog log = new ApiCallLog();
+    log.setSpEntityId("retentionsp");
+    log.setTimestamp(new Date(time));
+    return log;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * nl.surfnet.coin.db.AbstractInMemoryDatabaseTest#getMockDataContentFilename
+   * ()
+   */
+  @Override
+  public String getMockDataContentFilename() {
+    return "sql/insert-data.sql";
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * nl.surfnet.coin.db.AbstractInMemoryDatabaseTest#getMockDataCleanUpFilename
+   * ()
+   */
+  @Override
+  public String getMockDataCleanUpFilename() {
+    return "sql/cleanup-data.sql";
+  }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfnet.coin.shared.log;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import nl.surfnet.coin.db.AbstractInMemoryDatabaseTest;
+import nl.surfnet.coin.shared.log.ApiCallLogRollup.Granularity;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * Test class for {@link ApiCallLogRollupService}
+ */
+public class ApiCallLogRollupServiceTest extends AbstractInMemoryDatabaseTest {
+
+  private static final long HOUR = 60L * 60L * 1000L;
+
+  private ApiCallLogRollupService rollupService;
+  private ApiCallLogServiceImpl logService;
+  private long hourStart;
+
+  @Before
+  public void init() {
+    rollupService = new ApiCallLogRollupService(getJdbcTemplate());
+    logService = new ApiCallLogServiceImpl(getJdbcTemplate());
+    logService.setRollupService(rollupService);
+    hourStart = Granularity.HOUR.bucketStart(System.currentTimeMillis()) - 2 * HOUR;
+  }
+
+  @Test
+  public void testRollupsPerBucket() {
+    for (int i = 0; i < 10; i++) {
+      logService.saveApiCallLog(apiCallLog("rollupsp", "key" + (i % 2), hourStart + i * 60000L));
+    }
+    logService.saveApiCallLog(apiCallLog("rollupsp", null, hourStart + HOUR));
+    assertTrue("nothing is visible before the flush",
+        rollupService.findRollups("rollupsp", Granularity.HOUR, new Date(hourStart), new Date()).isEmpty());
+    rollupService.flush();
+
+    List<ApiCallLogRollup> hours = rollupService.findRollups("rollupsp", Granularity.HOUR, new Date(hourStart),
+        new Date(hourStart + 2 * HOUR));
+    assertEquals(3, hours.size());
+    assertEquals(5, hours.get(0).getCallCount());
+    assertEquals(new Date(hourStart), hours.get(0).getBucketStart());
+    assertEquals("", hours.get(2).getConsumerKey());
+
+    List<ApiCallLogRollup> minutes = rollupService.findRollups("rollupsp", Granularity.MINUTE, new Date(hourStart),
+        new Date(hourStart + HOUR));
+    assertEquals(10, minutes.size());
+
+    List<ApiCallLogRollup> callCounts = rollupService.findCallCounts("rollupsp", Granularity.HOUR, new Date(
+        hourStart), new Date(hourStart + 2 * HOUR));
+    assertEquals(2, callCounts.size());
+    assertEquals(10, callCounts.get(0).getCallCount());
+    assertEquals(1, callCounts.get(1).getCallCount());
+  }
+
+  @Test
+  public void testFlushAddsToExistingBuckets() {
+    logService.saveApiCallLog(apiCallLog("rollupsp", "key", hourStart));
+    rollupService.flush();
+    logService.saveApiCallLog(apiCallLog("rollupsp", "key", hourStart + 1000));
+    logService.saveApiCallLog(apiCallLog("rollupsp", "key", hourStart + 2000));
+    rollupService.flush();
+    rollupService.flush();
+
+    List<ApiCallLogRollup> hours = rollupService.findRollups("rollupsp", Granularity.HOUR, new Date(hourStart),
+        new Date(hourStart + HOUR));
+    assertEquals(1, hours.size());
+    assertEquals(3, hours.get(0).getCallCount());
+  }
+
+  @Test
+  public void testFailedFlushIsNotCountedTwice() {
+    FailingJdbcTemplate failing = new FailingJdbcTemplate();
+    rollupService = new ApiCallLogRollupService(failing);
+    rollupService.record(apiCallLog("rollupsp", "key", hourStart));
+    rollupService.flush();
+
+    // the update of the existing buckets succeeds, the insert of the new ones fails
+    rollupService.record(apiCallLog("rollupsp", "key", hourStart + 1000));
+    rollupService.record(apiCallLog("rollupsp", "other", hourStart + 2000));
+    failing.failInserts = true;
+    rollupService.flush();
+    assertEquals("the update is rolled back", 1, hourCount("key"));
+    assertEquals(0, hourCount("other"));
+
+    failing.failInserts = false;
+    rollupService.flush();
+    assertEquals(2, hourCount("key"));
+    assertEquals(1, hourCount("other"));
+  }
+
+  @Test
+  public void testFlushWithoutBatchRowCounts() {
+    FailingJdbcTemplate failing = new FailingJdbcTemplate();
+    failing.noBatchRowCounts = true;
+    rollupService = new ApiCallLogRollupService(failing);
+    rollupService.record(apiCallLog("rollupsp", "key", hourStart));
+    rollupService.flush();
+    rollupService.record(apiCallLog("rollupsp", "key", hourStart + 1000));
+    rollupService.record(apiCallLog("rollupsp", "other", hourStart + 2000));
+    rollupService.flush();
+
+    assertEquals(2, hourCount("key"));
+    assertEquals(1, hourCount("other"));
+  }
+
+  private long hourCount(String consumerKey) {
+    for (ApiCallLogRollup rollup : rollupService.findRollups("rollupsp", Granularity.HOUR, new Date(hourStart),
+        new Date(hourStart + HOUR))) {
+      if (rollup.getConsumerKey().equals(consumerKey)) {
+        return rollup.getCallCount();
+      }
+    }
+    return 0;
+  }
+
+  @Test
+  public void testTopConsumerKeys() throws Exception {
+    rollupService.setFlushIntervalMillis(60000);
+    for (int i = 0; i < 6; i++) {
+      rollupService.record(apiCallLog("sp" + (i % 2), "key" + (i % 3), hourStart + i * HOUR / 6));
+    }
+    rollupService.record(apiCallLog("sp0", "key0", hourStart - HOUR));
+    rollupService.destroy();
+
+    List<ApiCallLogRollup> top = rollupService.findTopConsumerKeys(Granularity.HOUR, new Date(hourStart), new Date(
+        hourStart + HOUR), 2);
+    assertEquals(2, top.size());
+    for (ApiCallLogRollup rollup : top) {
+      assertEquals(1, rollup.getCallCount());
+    }
+
+    rollupService.record(apiCallLog("sp0", "key0", hourStart));
+    rollupService.flush();
+    top = rollupService.findTopConsumerKeys(Granularity.MINUTE, new Date(hourStart), new Date(hourStart + HOUR), 1);
+    assertEquals("sp0", top.get(0).getSpEntityId());
+    assertEquals("key0", top.get(0).getConsumerKey());
+    assertEquals(2, top.get(0).getCallCount());
+  }
+
+  private ApiCallLog apiCallLog(String sp, String consumerKey, long time) {
+    ApiCallLog log = new ApiCallLog();
+    log.setSpEntityId(sp);
+    log.setConsumerKey(consumerKey);
+    log.setApiVersion("v1");
+    log.setTimestamp(new Date(time));
+    return log;
+  }
+
+  /*
+   * JdbcTemplate that fails inserts, or reports SUCCESS_NO_INFO for batches
+   */
+  private class FailingJdbcTemplate extends JdbcTemplate {
+    private boolean failInserts;
+    private boolean noBatchRowCounts;
+
+    private FailingJdbcTemplate() {
+      super(getJdbcTemplate().getDataSource());
+    }
+
+    @Override
+    public int update(String sql, Object... args) throws DataAccessException {
+      if (failInserts && sql.startsWith("insert")) {
+        throw new DataAccessResourceFailureException("insert failed");
+      }
+      return super.update(sql, args);
+    }
+
+    @Override
+    public int[] batchUpdate(String sql, List<Object[]> batchArgs) throws DataAccessException {
+      int[] updated = super.batchUpdate(sql, batchArgs);
+      if (noBatchRowCounts) {
+        Arrays.fill(updated, Statement.SUCCESS_NO_INFO);
+      }
+      return updated;
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * nl.surfnet.coin.db.AbstractInMemoryDatabaseTest#getMockDataContentFilename
+   * ()
+   */
+  @Override
+  public String getMockDataContentFilename() {
+    return "sql/insert-data.sql";
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * nl.surfnet.coin.db.AbstractInMemoryDatabaseTest#getMockDataCleanUpFilename
+   * ()
+   */
+  @Override
+  public String getMockDataCleanUpFilename() {
+    return "sql/cleanup-data.sql";
+  }
+}
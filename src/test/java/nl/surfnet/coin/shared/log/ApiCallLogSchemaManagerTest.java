@@ -0,0 +1,111 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfnet.coin.shared.log;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import nl.surfnet.coin.db.AbstractInMemoryDatabaseTest;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.util.StringUtils;
+
+/**
+ * Test class for {@link ApiCallLogSchemaManager}
+ */
+public class ApiCallLogSchemaManagerTest extends AbstractInMemoryDatabaseTest {
+
+  private ApiCallLogSchemaManager schemaManager;
+
+  @Before
+  public void init() {
+    schemaManager = new ApiCallLogSchemaManager(getJdbcTemplate());
+  }
+
+  @Test
+  public void testCreateMissingIndexes() {
+    List<String> expected = Arrays.asList("idx_api_call_log_sp_ts", "idx_api_call_log_consumer_key",
+        "idx_api_call_log_ts");
+    assertEquals(expected, schemaManager.findMissingIndexes());
+    assertEquals(expected, schemaManager.createMissingIndexes());
+    assertTrue(schemaManager.findMissingIndexes().isEmpty());
+    assertTrue(schemaManager.createMissingIndexes().isEmpty());
+  }
+
+  @Test
+  public void testExistingIndexWithMatchingLeadingColumnsIsAccepted() {
+    getJdbcTemplate().execute("create index idx_custom on api_call_log (consumer_key, spentity_id)");
+    assertEquals(Arrays.asList("idx_api_call_log_sp_ts", "idx_api_call_log_ts"), schemaManager.findMissingIndexes());
+  }
+
+  @Test
+  public void testColumnsAreRightSized() {
+    assertTrue(schemaManager.findOversizedColumns().isEmpty());
+  }
+
+  @Test
+  public void testMissingIndexesAreOnlyReportedByDefault() {
+    schemaManager.afterPropertiesSet();
+    assertEquals(3, schemaManager.findMissingIndexes().size());
+  }
+
+  @Test
+  public void testQueryPlansUseIndexes() {
+    schemaManager.setCreateMissingIndexes(true);
+    schemaManager.afterPropertiesSet();
+
+    assertPlanUsesIndex("select id from api_call_log where spentity_id = 'testsp1' "
+        + "and log_timestamp >= TIMESTAMP '2013-01-01 00:00:00' order by log_timestamp, id", "idx_api_call_log_sp_ts");
+    assertPlanUsesIndex("select id from api_call_log where consumer_key = 'consumer_key'",
+        "idx_api_call_log_consumer_key");
+    assertPlanUsesIndex("select id from api_call_log where log_timestamp < TIMESTAMP '2013-01-01 00:00:00'",
+        "idx_api_call_log_ts");
+  }
+
+  private void assertPlanUsesIndex(String query, String index) {
+    List<String> plan = getJdbcTemplate().queryForList("EXPLAIN PLAN FOR " + query, String.class);
+    String planText = StringUtils.collectionToDelimitedString(plan, "\n");
+    assertTrue(planText, planText.toLowerCase().contains(index));
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * nl.surfnet.coin.db.AbstractInMemoryDatabaseTest#getMockDataContentFilename
+   * ()
+   */
+  @Override
+  public String getMockDataContentFilename() {
+    return "sql/insert-data.sql";
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * nl.surfnet.coin.db.AbstractInMemoryDatabaseTest#getMockDataCleanUpFilename
+   * ()
+   */
+  @Override
+  public String getMockDataCleanUpFilename() {
+    return "sql/cleanup-data.sql";
+  }
+}
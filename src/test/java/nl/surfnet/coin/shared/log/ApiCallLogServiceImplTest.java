@@ -20,16 +20,30 @@ package nl.surfnet.coin.shared.log;
 
 import static org.junit.Assert.*;
 import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
 import javax.servlet.ServletRequestEvent;
+import javax.sql.DataSource;
 
 import nl.surfnet.coin.db.AbstractInMemoryDatabaseTest;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.springframework.mock.web.MockHttpServletRequest;
 import org.springframework.mock.web.MockServletContext;
 
@@ -65,6 +79,147 @@ public class ApiCallLogServiceImplTest extends AbstractInMemoryDatabaseTest {
 
   }
   
+  @Test
+  public void testSaveApiCallLogKeepsTheRequestTime() {
+    ApiCallLog apiCallLog = new ApiCallLog();
+    apiCallLog.setSpEntityId("testsp6");
+    Date requestTime = new Date(System.currentTimeMillis() - 3600000);
+    apiCallLog.setTimestamp(requestTime);
+
+    service.saveApiCallLog(apiCallLog);
+
+    List<ApiCallLog> logs = service.findApiCallLog("testsp6");
+    assertEquals(1, logs.size());
+    assertEquals(requestTime.getTime(), logs.get(0).getTimestamp().getTime());
+  }
+
+  @Test
+  public void testSaveApiCallLogs() {
+    List<ApiCallLog> batch = new ArrayList<ApiCallLog>();
+    for (int i = 0; i < 3; i++) {
+      ApiCallLog apiCallLog = new ApiCallLog();
+      apiCallLog.setUserId("test_id" + i);
+      apiCallLog.setSpEntityId("testsp4");
+      batch.add(apiCallLog);
+    }
+    service.saveApiCallLogs(batch);
+
+    List<ApiCallLog> logs = service.findApiCallLog("testsp4");
+    assertEquals(3, logs.size());
+    assertNotNull(logs.get(0).getTimestamp());
+  }
+
+  @Test
+  public void testFindApiCallLogPaged() {
+    long now = System.currentTimeMillis();
+    List<ApiCallLog> batch = new ArrayList<ApiCallLog>();
+    for (int i = 0; i < 25; i++) {
+      ApiCallLog apiCallLog = new ApiCallLog();
+      apiCallLog.setSpEntityId("testsp5");
+      // two logs per second, so the cursor needs the id as tie breaker
+      apiCallLog.setTimestamp(new Date(now - 60000 + (i / 2) * 1000));
+      batch.add(apiCallLog);
+    }
+    service.saveApiCallLogs(batch);
+
+    int count = 0;
+    ApiCallLog last = null;
+    List<ApiCallLog> page = service.findApiCallLog("testsp5", new Date(now - 60000), new Date(now), null, 10);
+    while (!page.isEmpty()) {
+      assertTrue(page.size() <= 10);
+      for (ApiCallLog log : page) {
+        if (last != null) {
+          assertTrue(log.getTimestamp().after(last.getTimestamp())
+              || (log.getTimestamp().equals(last.getTimestamp()) && log.getId() > last.getId()));
+        }
+        last = log;
+        count++;
+      }
+      page = service.findApiCallLog("testsp5", new Date(now - 60000), new Date(now), last, 10);
+    }
+    assertEquals(25, count);
+
+    assertEquals("time range is applied", 4,
+        service.findApiCallLog("testsp5", new Date(now - 60000), new Date(now - 58000), null, 10).size());
+  }
+
+  @Test
+  public void testFindApiCallLogPagedWithinOneMillisecond() {
+    long millis = System.currentTimeMillis() - 60000;
+    List<ApiCallLog> batch = new ArrayList<ApiCallLog>();
+    for (int i = 0; i < 10; i++) {
+      ApiCallLog apiCallLog = new ApiCallLog();
+      apiCallLog.setSpEntityId("testsp7");
+      // later logs are inserted first, so the ids do not follow the timestamps
+      Timestamp timestamp = new Timestamp(millis);
+      timestamp.setNanos(timestamp.getNanos() + (10 - i) * 1000);
+      apiCallLog.setTimestamp(timestamp);
+      batch.add(apiCallLog);
+    }
+    service.saveApiCallLogs(batch);
+
+    List<Long> ids = new ArrayList<Long>();
+    List<ApiCallLog> page = service.findApiCallLog("testsp7", null, null, null, 3);
+    while (!page.isEmpty()) {
+      for (ApiCallLog log : page) {
+        assertFalse("no log is repeated on a later page", ids.contains(log.getId()));
+        ids.add(log.getId());
+      }
+      page = service.findApiCallLog("testsp7", null, null, page.get(page.size() - 1), 3);
+    }
+    assertEquals(10, ids.size());
+  }
+
+  @Test
+  public void testFindApiCallLogStreaming() {
+    final List<ApiCallLog> streamed = new ArrayList<ApiCallLog>();
+    service.findApiCallLog("testsp1", null, null, new ApiCallLogCallback() {
+      @Override
+      public void processApiCallLog(ApiCallLog log) {
+        streamed.add(log);
+      }
+    });
+    assertEquals(2, streamed.size());
+  }
+
+  @Test
+  public void testStreamingFetchSize() throws Exception {
+    assertEquals("MySQL only streams with MIN_VALUE", Integer.MIN_VALUE,
+        streamingFetchSize("MySQL", "jdbc:mysql://localhost/api", null));
+    assertEquals("MySQL streams with a cursor", 1000,
+        streamingFetchSize("MySQL", "jdbc:mysql://localhost/api?useCursorFetch=true", null));
+    assertEquals(1000, streamingFetchSize("HSQL Database Engine", "jdbc:hsqldb:mem:api", null));
+    assertEquals("configured value wins", 50, streamingFetchSize("MySQL", "jdbc:mysql://localhost/api", 50));
+  }
+
+  /*
+   * The fetch size that is set on the statement when streaming from the given database
+   */
+  private int streamingFetchSize(String databaseProductName, String url, Integer configured) throws Exception {
+    DatabaseMetaData metaData = mock(DatabaseMetaData.class);
+    when(metaData.getDatabaseProductName()).thenReturn(databaseProductName);
+    when(metaData.getURL()).thenReturn(url);
+    ResultSet resultSet = mock(ResultSet.class);
+    PreparedStatement ps = mock(PreparedStatement.class);
+    when(ps.executeQuery()).thenReturn(resultSet);
+    Connection connection = mock(Connection.class);
+    when(connection.getMetaData()).thenReturn(metaData);
+    when(connection.prepareStatement(anyString(), anyInt(), anyInt())).thenReturn(ps);
+    DataSource dataSource = mock(DataSource.class);
+    when(dataSource.getConnection()).thenReturn(connection);
+
+    ApiCallLogServiceImpl streamingService = new ApiCallLogServiceImpl(dataSource);
+    streamingService.setStreamingFetchSize(configured);
+    streamingService.findApiCallLog("testsp1", null, null, new ApiCallLogCallback() {
+      @Override
+      public void processApiCallLog(ApiCallLog log) {
+      }
+    });
+    ArgumentCaptor<Integer> fetchSize = ArgumentCaptor.forClass(Integer.class);
+    verify(ps).setFetchSize(fetchSize.capture());
+    return fetchSize.getValue();
+  }
+
   @Test
   public void testFindSP() throws Exception {
     List<String> sps = service.findServiceProviders();
@@ -75,6 +230,25 @@ public class ApiCallLogServiceImplTest extends AbstractInMemoryDatabaseTest {
     }
   }
 
+  @Test
+  public void testFindSPIsCachedAndUpdatedOnSave() throws Exception {
+    assertEquals(2, service.findServiceProviders().size());
+
+    getJdbcTemplate().update("INSERT INTO api_call_log (spentity_id) VALUES ('testsp6')");
+    assertEquals("rows of other nodes are not seen without refresh", 2, service.findServiceProviders().size());
+
+    ApiCallLog apiCallLog = new ApiCallLog();
+    apiCallLog.setSpEntityId("testsp7");
+    service.saveApiCallLog(apiCallLog);
+    List<String> sps = service.findServiceProviders();
+    assertEquals(3, sps.size());
+    assertTrue(sps.contains("testsp7"));
+
+    service.setServiceProviderRefreshMillis(1);
+    Thread.sleep(5);
+    assertEquals(4, service.findServiceProviders().size());
+  }
+
   @Before
   public void init() {
     service = new ApiCallLogServiceImpl(super.getJdbcTemplate());
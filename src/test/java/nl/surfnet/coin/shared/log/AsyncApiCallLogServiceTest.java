@@ -0,0 +1,276 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfnet.coin.shared.log;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.argThat;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nl.surfnet.coin.db.AbstractInMemoryDatabaseTest;
+
+import org.hamcrest.BaseMatcher;
+import org.hamcrest.Description;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Test class for {@link AsyncApiCallLogService}
+ */
+public class AsyncApiCallLogServiceTest extends AbstractInMemoryDatabaseTest {
+
+  @Test
+  public void testQueuedLogsAreWrittenOnDestroy() throws Exception {
+    ApiCallLogServiceImpl jdbcService = new ApiCallLogServiceImpl(getJdbcTemplate());
+    AsyncApiCallLogService service = new AsyncApiCallLogService(jdbcService, 1000, 50, 60000);
+    for (int i = 0; i < 120; i++) {
+      service.saveApiCallLog(apiCallLog("asyncsp"));
+    }
+    service.destroy();
+
+    assertEquals(120, jdbcService.findApiCallLog("asyncsp").size());
+    assertEquals(0, service.getDropped());
+  }
+
+  @Test
+  public void testDropOldestWhenQueueIsFull() throws Exception {
+    BatchApiCallLogService delegate = mock(BatchApiCallLogService.class);
+    final CountDownLatch writing = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        writing.countDown();
+        release.await();
+        return null;
+      }
+    }).when(delegate).saveApiCallLogs(anyListOf(ApiCallLog.class));
+
+    AsyncApiCallLogService service = new AsyncApiCallLogService(delegate, 2, 1, 10);
+    service.setOverflowPolicy(AsyncApiCallLogService.OverflowPolicy.DROP_OLDEST);
+    service.saveApiCallLog(apiCallLog("sp"));
+    writing.await();
+
+    for (int i = 0; i < 5; i++) {
+      service.saveApiCallLog(apiCallLog("sp"));
+    }
+    assertEquals(2, service.getQueueSize());
+    assertEquals(3, service.getDropped());
+
+    release.countDown();
+    service.destroy();
+  }
+
+  @Test
+  public void testFailedBatchIsWrittenOneByOne() throws Exception {
+    BatchApiCallLogService delegate = mock(BatchApiCallLogService.class);
+    doThrow(new IllegalStateException("batch")).when(delegate).saveApiCallLogs(anyListOf(ApiCallLog.class));
+    doThrow(new IllegalStateException("single")).when(delegate).saveApiCallLog(argThat(new BaseMatcher<ApiCallLog>() {
+      @Override
+      public boolean matches(Object item) {
+        return "badsp".equals(((ApiCallLog) item).getSpEntityId());
+      }
+
+      @Override
+      public void describeTo(Description description) {
+        description.appendText("ApiCallLog of badsp");
+      }
+    }));
+
+    AsyncApiCallLogService service = new AsyncApiCallLogService(delegate, 100, 10, 60000);
+    for (int i = 0; i < 9; i++) {
+      service.saveApiCallLog(apiCallLog("sp"));
+    }
+    service.saveApiCallLog(apiCallLog("badsp"));
+    service.destroy();
+
+    verify(delegate, times(10)).saveApiCallLog(any(ApiCallLog.class));
+    assertEquals("only the log that fails itself is lost", 1, service.getFailed());
+    assertEquals(0, service.getDropped());
+  }
+
+  @Test
+  public void testErrorDoesNotEndTheWriter() throws Exception {
+    ApiCallLogService delegate = mock(ApiCallLogService.class);
+    ApiCallLog bad = apiCallLog("badsp");
+    AsyncApiCallLogService service = new AsyncApiCallLogService(delegate, 100, 1, 10);
+    doThrow(new AssertionError("error")).when(delegate).saveApiCallLog(argThat(new BaseMatcher<ApiCallLog>() {
+      @Override
+      public boolean matches(Object item) {
+        return "badsp".equals(((ApiCallLog) item).getSpEntityId());
+      }
+
+      @Override
+      public void describeTo(Description description) {
+        description.appendText("ApiCallLog of badsp");
+      }
+    }));
+
+    service.saveApiCallLog(bad);
+    for (int i = 0; i < 5; i++) {
+      service.saveApiCallLog(apiCallLog("sp"));
+    }
+    service.destroy();
+
+    verify(delegate, times(5)).saveApiCallLog(argThat(new BaseMatcher<ApiCallLog>() {
+      @Override
+      public boolean matches(Object item) {
+        return "sp".equals(((ApiCallLog) item).getSpEntityId());
+      }
+
+      @Override
+      public void describeTo(Description description) {
+        description.appendText("ApiCallLog of sp");
+      }
+    }));
+    assertEquals(1, service.getFailed());
+  }
+
+  @Test
+  public void testSampledLogCarriesTheDroppedCalls() throws Exception {
+    BatchApiCallLogService delegate = mock(BatchApiCallLogService.class);
+    final CountDownLatch writing = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final List<Integer> callCounts = new ArrayList<Integer>();
+    doAnswer(new Answer<Void>() {
+      @Override
+      @SuppressWarnings("unchecked")
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        writing.countDown();
+        release.await();
+        for (ApiCallLog log : (List<ApiCallLog>) invocation.getArguments()[0]) {
+          callCounts.add(log.getCallCount());
+        }
+        return null;
+      }
+    }).when(delegate).saveApiCallLogs(anyListOf(ApiCallLog.class));
+
+    AsyncApiCallLogService service = new AsyncApiCallLogService(delegate, 2, 1, 10);
+    service.setOverflowPolicy(AsyncApiCallLogService.OverflowPolicy.SAMPLE);
+    service.setSampleRate(3);
+    service.saveApiCallLog(apiCallLog("sp"));
+    writing.await();
+
+    // fill the queue, then overflow with three logs of which one is kept
+    for (int i = 0; i < 5; i++) {
+      service.saveApiCallLog(apiCallLog("sp"));
+    }
+    release.countDown();
+    service.destroy();
+
+    int total = 0;
+    for (int callCount : callCounts) {
+      total += callCount;
+    }
+    assertTrue("the kept log counts for the sampled ones", callCounts.contains(3));
+    assertEquals("only the oldest queued log is lost", 5, total);
+  }
+
+  @Test
+  public void testNoLogIsLeftInTheQueueByDestroy() throws Exception {
+    ApiCallLogService delegate = mock(ApiCallLogService.class);
+    final AtomicInteger saved = new AtomicInteger();
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        saved.incrementAndGet();
+        return null;
+      }
+    }).when(delegate).saveApiCallLog(any(ApiCallLog.class));
+
+    final AsyncApiCallLogService service = new AsyncApiCallLogService(delegate, 10000, 10, 10);
+    final int threads = 4;
+    final int logs = 2000;
+    final CountDownLatch started = new CountDownLatch(threads);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    for (int t = 0; t < threads; t++) {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          started.countDown();
+          for (int i = 0; i < logs; i++) {
+            service.saveApiCallLog(apiCallLog("sp"));
+          }
+        }
+      });
+    }
+    started.await();
+    service.destroy();
+    executor.shutdown();
+    executor.awaitTermination(1, TimeUnit.MINUTES);
+
+    assertEquals("logs saved during destroy are written, not left in the queue", threads * logs, saved.get());
+    assertEquals(0, service.getQueueSize());
+  }
+
+  @Test
+  public void testTimeRangeOfDelegateWithoutTimeRanges() throws Exception {
+    ApiCallLogService delegate = mock(ApiCallLogService.class);
+    List<ApiCallLog> logs = new ArrayList<ApiCallLog>();
+    for (int i = 4; i >= 0; i--) {
+      ApiCallLog log = apiCallLog("sp");
+      log.setId((long) i);
+      log.setTimestamp(new Date(1000L * i));
+      logs.add(log);
+    }
+    when(delegate.findApiCallLog("sp")).thenReturn(logs);
+    AsyncApiCallLogService service = new AsyncApiCallLogService(delegate, 10, 1, 10);
+
+    List<ApiCallLog> page = service.findApiCallLog("sp", new Date(1000), new Date(4000), null, 2);
+    assertEquals(Arrays.asList(logs.get(3), logs.get(2)), page);
+    page = service.findApiCallLog("sp", new Date(1000), new Date(4000), page.get(1), 2);
+    assertEquals(Arrays.asList(logs.get(1)), page);
+    service.destroy();
+  }
+
+  private ApiCallLog apiCallLog(String sp) {
+    ApiCallLog log = new ApiCallLog();
+    log.setUserId("user");
+    log.setSpEntityId(sp);
+    log.setApiVersion("v1");
+    log.setConsumerKey("key");
+    log.setResourceUrl("http://localhost/test/person");
+    return log;
+  }
+
+  @Override
+  public String getMockDataContentFilename() {
+    return "sql/insert-data.sql";
+  }
+
+  @Override
+  public String getMockDataCleanUpFilename() {
+    return "sql/cleanup-data.sql";
+  }
+}
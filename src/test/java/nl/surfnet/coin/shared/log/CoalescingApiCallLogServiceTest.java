@@ -0,0 +1,172 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfnet.coin.shared.log;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.util.Collections;
+import java.util.List;
+
+import nl.surfnet.coin.db.AbstractInMemoryDatabaseTest;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test class for {@link CoalescingApiCallLogService}
+ */
+public class CoalescingApiCallLogServiceTest extends AbstractInMemoryDatabaseTest {
+
+  private ApiCallLogServiceImpl jdbcService;
+  private CoalescingApiCallLogService service;
+
+  @Before
+  public void init() {
+    ApiCallLogSchemaManager schemaManager = new ApiCallLogSchemaManager(getJdbcTemplate());
+    assertFalse(schemaManager.hasCallCountColumn());
+    schemaManager.setCreateCallCountColumn(true);
+    schemaManager.afterPropertiesSet();
+    assertTrue(schemaManager.hasCallCountColumn());
+
+    jdbcService = new ApiCallLogServiceImpl(getJdbcTemplate());
+    jdbcService.setCallCountColumn(true);
+    service = new CoalescingApiCallLogService(jdbcService, 60000);
+  }
+
+  @Test
+  public void testIdenticalRequestsAreCoalesced() throws Exception {
+    for (int i = 0; i < 100; i++) {
+      service.saveApiCallLog(apiCallLog("pollingsp", "http://localhost/social/rest/people/@me"));
+    }
+    for (int i = 0; i < 5; i++) {
+      service.saveApiCallLog(apiCallLog("pollingsp", "http://localhost/social/rest/groups/" + i));
+    }
+    service.destroy();
+
+    List<ApiCallLog> logs = jdbcService.findApiCallLog("pollingsp");
+    assertEquals(6, logs.size());
+    int total = 0;
+    for (ApiCallLog log : logs) {
+      total += log.getCallCount();
+      if (log.getResourceUrl().endsWith("@me")) {
+        assertEquals(100, log.getCallCount());
+      }
+    }
+    assertEquals(105, total);
+    assertEquals(105, service.getReceived());
+    assertEquals(6, service.getWritten());
+
+    assertEquals("existing rows count as one request", 1, jdbcService.findApiCallLog("testsp1").get(0)
+        .getCallCount());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testDelegateWithoutCallCountColumnIsRejected() {
+    new CoalescingApiCallLogService(new ApiCallLogServiceImpl(getJdbcTemplate()), 60000);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testDelegateWithoutCallCountIsRejected() {
+    new CoalescingApiCallLogService(mock(ApiCallLogService.class), 60000);
+  }
+
+  @Test
+  public void testFailedFlushIsWrittenOneByOne() throws Exception {
+    ApiCallLogServiceImpl failingService = new ApiCallLogServiceImpl(getJdbcTemplate()) {
+      @Override
+      public void saveApiCallLogs(List<ApiCallLog> logs) {
+        if (logs.size() > 1) {
+          throw new IllegalStateException("batch");
+        }
+        if ("badsp".equals(logs.get(0).getSpEntityId())) {
+          throw new IllegalStateException("single");
+        }
+        super.saveApiCallLogs(logs);
+      }
+    };
+    failingService.setCallCountColumn(true);
+    service.destroy();
+    service = new CoalescingApiCallLogService(failingService, 60000);
+    for (int i = 0; i < 3; i++) {
+      service.saveApiCallLog(apiCallLog("retrysp", "http://localhost/social/rest/people/@me"));
+      service.saveApiCallLog(apiCallLog("retrysp", "http://localhost/social/rest/groups/@me"));
+      service.saveApiCallLog(apiCallLog("badsp", "http://localhost/social/rest/people/@me"));
+    }
+    service.destroy();
+
+    assertEquals(2, jdbcService.findApiCallLog("retrysp").size());
+    assertEquals(2, service.getWritten());
+    assertEquals("only the log that fails itself is lost", 1, service.getDropped());
+  }
+
+  @Test
+  public void testRequestsAreSampledPerServiceProvider() throws Exception {
+    service.setSampleRates(Collections.singletonMap("noisysp", 10));
+    for (int i = 0; i < 100; i++) {
+      service.saveApiCallLog(apiCallLog("noisysp", "http://localhost/social/rest/people/" + i));
+      service.saveApiCallLog(apiCallLog("quietsp", "http://localhost/social/rest/people/" + i));
+    }
+    service.flush();
+
+    List<ApiCallLog> logs = jdbcService.findApiCallLog("noisysp");
+    assertEquals(10, logs.size());
+    for (ApiCallLog log : logs) {
+      assertEquals(10, log.getCallCount());
+    }
+    assertEquals(100, jdbcService.findApiCallLog("quietsp").size());
+    assertEquals(90, service.getSampledOut());
+
+    service.destroy();
+    service.saveApiCallLog(apiCallLog("quietsp", "http://localhost/social/rest/people/@me"));
+    assertEquals("logs are written directly after destroy", 101, jdbcService.findApiCallLog("quietsp").size());
+  }
+
+  private ApiCallLog apiCallLog(String sp, String resourceUrl) {
+    ApiCallLog log = new ApiCallLog();
+    log.setUserId("user");
+    log.setSpEntityId(sp);
+    log.setConsumerKey("key");
+    log.setResourceUrl(resourceUrl);
+    return log;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * nl.surfnet.coin.db.AbstractInMemoryDatabaseTest#getMockDataContentFilename
+   * ()
+   */
+  @Override
+  public String getMockDataContentFilename() {
+    return "sql/insert-data.sql";
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * nl.surfnet.coin.db.AbstractInMemoryDatabaseTest#getMockDataCleanUpFilename
+   * ()
+   */
+  @Override
+  public String getMockDataCleanUpFilename() {
+    return "sql/cleanup-data.sql";
+  }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfnet.coin.shared.log;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Date;
+
+import nl.surfnet.coin.db.AbstractInMemoryDatabaseTest;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test class for {@link JournalApiCallLogService} and
+ * {@link ApiCallLogJournalLoader}
+ */
+public class JournalApiCallLogServiceTest extends AbstractInMemoryDatabaseTest {
+
+  private static final int SEGMENT_SIZE = 64 * 1024;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private File directory;
+  private ApiCallLogServiceImpl jdbcService;
+
+  @Before
+  public void init() {
+    directory = new File(folder.getRoot(), "journal");
+    jdbcService = new ApiCallLogServiceImpl(getJdbcTemplate());
+  }
+
+  @Test
+  public void testJournalIsLoadedIntoDatabase() throws Exception {
+    JournalApiCallLogService service = new JournalApiCallLogService(directory, SEGMENT_SIZE, jdbcService);
+    for (int i = 0; i < 2000; i++) {
+      service.saveApiCallLog(apiCallLog("journalsp", i));
+    }
+    service.destroy();
+    assertTrue("the logs are spread over several segments",
+        ApiCallLogJournal.segments(directory, ApiCallLogJournal.SEGMENT_SUFFIX).length > 1);
+
+    ApiCallLogJournalLoader loader = new ApiCallLogJournalLoader(directory, jdbcService);
+    assertEquals(2000, loader.load());
+    assertEquals(2000, jdbcService.findApiCallLog("journalsp").size());
+    assertEquals(0, directory.listFiles().length);
+    assertEquals(0, loader.load());
+
+    ApiCallLog first = jdbcService.findApiCallLog("journalsp", null, null, null, 1).get(0);
+    assertEquals("user0", first.getUserId());
+    assertNull(first.getConsumerKey());
+    assertEquals(new Date(1000000L), first.getTimestamp());
+  }
+
+  @Test
+  public void testOpenSegmentIsRecoveredAfterCrash() throws Exception {
+    JournalApiCallLogService crashed = new JournalApiCallLogService(directory, SEGMENT_SIZE, jdbcService);
+    for (int i = 0; i < 10; i++) {
+      crashed.saveApiCallLog(apiCallLog("crashsp", i));
+    }
+    // no destroy, the segment is left open
+
+    JournalApiCallLogService restarted = new JournalApiCallLogService(directory, SEGMENT_SIZE, jdbcService);
+    restarted.saveApiCallLog(apiCallLog("crashsp", 10));
+    restarted.destroy();
+
+    assertEquals(11, new ApiCallLogJournalLoader(directory, jdbcService).load());
+    assertEquals(11, jdbcService.findApiCallLog("crashsp").size());
+  }
+
+  @Test
+  public void testCallCountIsJournaled() throws Exception {
+    JournalApiCallLogService service = new JournalApiCallLogService(directory, SEGMENT_SIZE, jdbcService);
+    ApiCallLog log = apiCallLog("journalsp", 0);
+    log.setCallCount(5);
+    service.saveApiCallLog(log);
+    service.destroy();
+
+    ByteBuffer segment = ByteBuffer.wrap(FileUtils.readFileToByteArray(ApiCallLogJournal
+        .segments(directory, ApiCallLogJournal.SEGMENT_SUFFIX)[0]));
+    int version = ApiCallLogJournal.readHeader(segment);
+    assertEquals(ApiCallLogJournal.VERSION, version);
+    assertEquals(5, ApiCallLogJournal.decode(segment, version).getCallCount());
+  }
+
+  @Test
+  public void testSegmentVersions() throws Exception {
+    directory.mkdirs();
+    // a version 1 segment has no header and no call count
+    ByteBuffer legacy = ByteBuffer.allocate(1024);
+    byte[] sp = "legacysp".getBytes("UTF-8");
+    legacy.putInt(8 + 4 + sp.length + 5 * 4).putLong(1000000L).putInt(-1).putInt(sp.length).put(sp);
+    legacy.putInt(-1).putInt(-1).putInt(-1).putInt(-1);
+    write(ApiCallLogJournal.segmentFile(directory, 1, ApiCallLogJournal.SEGMENT_SUFFIX), legacy);
+    ByteBuffer unknown = ByteBuffer.allocate(1024);
+    unknown.putInt(ApiCallLogJournal.MAGIC).put((byte) (ApiCallLogJournal.VERSION + 1));
+    File unknownSegment = ApiCallLogJournal.segmentFile(directory, 2, ApiCallLogJournal.SEGMENT_SUFFIX);
+    write(unknownSegment, unknown);
+
+    assertEquals(1, new ApiCallLogJournalLoader(directory, jdbcService).load());
+    ApiCallLog log = jdbcService.findApiCallLog("legacysp").get(0);
+    assertNull(log.getUserId());
+    assertEquals(new Date(1000000L), log.getTimestamp());
+    assertTrue("a segment of an unknown version is left in place", unknownSegment.exists());
+  }
+
+  private void write(File segment, ByteBuffer content) throws Exception {
+    FileOutputStream out = new FileOutputStream(segment);
+    try {
+      out.write(content.array());
+    } finally {
+      out.close();
+    }
+  }
+
+  @Test
+  public void testFullSegmentsAreCompletedInTheBackground() throws Exception {
+    JournalApiCallLogService service = new JournalApiCallLogService(directory, SEGMENT_SIZE, jdbcService);
+    service.setForceIntervalMillis(10);
+    for (int i = 0; i < 2000; i++) {
+      service.saveApiCallLog(apiCallLog("journalsp", i));
+    }
+    long deadline = System.currentTimeMillis() + 5000;
+    while (ApiCallLogJournal.segments(directory, ApiCallLogJournal.OPEN_SUFFIX).length > 1
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals("only the segment in use is open", 1,
+        ApiCallLogJournal.segments(directory, ApiCallLogJournal.OPEN_SUFFIX).length);
+    long completed = new ApiCallLogJournalLoader(directory, jdbcService).load();
+    assertTrue(completed > 0 && completed < 2000);
+
+    service.destroy();
+    assertEquals(0, ApiCallLogJournal.segments(directory, ApiCallLogJournal.OPEN_SUFFIX).length);
+    assertEquals(2000 - completed, new ApiCallLogJournalLoader(directory, jdbcService).load());
+    try {
+      service.saveApiCallLog(apiCallLog("journalsp", 0));
+      fail("the journal is closed");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+  }
+
+  private ApiCallLog apiCallLog(String sp, int i) {
+    ApiCallLog log = new ApiCallLog();
+    log.setUserId("user" + i);
+    log.setSpEntityId(sp);
+    log.setIpAddress("127.0.0.1");
+    log.setApiVersion("v1");
+    log.setResourceUrl("http%3A%2F%2Flocalhost%2Fsocial%2Frest%2Fpeople%2F%40me");
+    log.setTimestamp(new Date(1000000L + i * 1000L));
+    return log;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * nl.surfnet.coin.db.AbstractInMemoryDatabaseTest#getMockDataContentFilename
+   * ()
+   */
+  @Override
+  public String getMockDataContentFilename() {
+    return "sql/insert-data.sql";
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * nl.surfnet.coin.db.AbstractInMemoryDatabaseTest#getMockDataCleanUpFilename
+   * ()
+   */
+  @Override
+  public String getMockDataCleanUpFilename() {
+    return "sql/cleanup-data.sql";
+  }
+}
@@ -0,0 +1,623 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.coin.shared.service;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.AnnotationConfiguration;
+import org.hibernate.cfg.Environment;
+import org.hibernate.criterion.Restrictions;
+import org.hibernate.dialect.HSQLDialect;
+import org.hibernate.jdbc.Work;
+import org.hibernate.stat.Statistics;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for {@link GenericServiceHibernateImpl}, against an in-memory HSQLDB
+ */
+public class GenericServiceHibernateImplTest {
+
+  private static final int ROWS = 1000;
+
+  /*
+   * Run with -Dscroll.test.rows=1000000 to check the memory use of scrolling a large table
+   */
+  private static final int SCROLL_ROWS = Integer.getInteger("scroll.test.rows", 10000);
+
+  private SessionFactory sessionFactory;
+
+  private GenericServiceHibernateImpl<TestEntity> service;
+
+  @Before
+  public void setup() {
+    sessionFactory = buildSessionFactory(false);
+
+    service = new GenericServiceHibernateImpl<TestEntity>(TestEntity.class);
+    ReflectionTestUtils.setField(service, "portalSessionFactory", sessionFactory);
+
+    sessionFactory.getCurrentSession().beginTransaction();
+  }
+
+  private SessionFactory buildSessionFactory(boolean secondLevelCache) {
+    return buildSessionFactory(secondLevelCache, "jdbc:hsqldb:mem:generic-service-test");
+  }
+
+  private SessionFactory buildSessionFactory(boolean secondLevelCache, String url) {
+    AnnotationConfiguration configuration = new AnnotationConfiguration();
+    configuration.addAnnotatedClass(TestEntity.class);
+    configuration.setProperty(Environment.DIALECT, HSQLDialect.class.getName());
+    configuration.setProperty(Environment.DRIVER, "org.hsqldb.jdbcDriver");
+    configuration.setProperty(Environment.URL, url);
+    configuration.setProperty(Environment.USER, "sa");
+    configuration.setProperty(Environment.PASS, "");
+    configuration.setProperty(Environment.HBM2DDL_AUTO, "create-drop");
+    configuration.setProperty(Environment.CURRENT_SESSION_CONTEXT_CLASS, "thread");
+    configuration.setProperty(Environment.GENERATE_STATISTICS, "true");
+    configuration.setProperty(Environment.STATEMENT_BATCH_SIZE, "50");
+    configuration.setProperty(Environment.ORDER_UPDATES, "true");
+    if (secondLevelCache) {
+      configuration.setProperty(Environment.USE_SECOND_LEVEL_CACHE, "true");
+      configuration.setProperty(Environment.USE_QUERY_CACHE, "true");
+      configuration.setProperty(Environment.CACHE_REGION_FACTORY, "net.sf.ehcache.hibernate.EhCacheRegionFactory");
+      configuration.setCacheConcurrencyStrategy(TestEntity.class.getName(), "read-write");
+    }
+    return configuration.buildSessionFactory();
+  }
+
+  @After
+  public void tearDown() {
+    if (sessionFactory.getCurrentSession().getTransaction().isActive()) {
+      sessionFactory.getCurrentSession().getTransaction().rollback();
+    }
+    sessionFactory.close();
+  }
+
+  @Test
+  public void findPageWalksAllRowsInOrder() {
+    insertRows(ROWS);
+
+    List<Long> seen = new ArrayList<Long>(ROWS);
+    Long afterId = null;
+    List<TestEntity> page = service.findPage(afterId, 100, SortOrder.ASCENDING);
+    while (!page.isEmpty()) {
+      for (TestEntity entity : page) {
+        if (!seen.isEmpty()) {
+          assertTrue("ids should be ascending", entity.getId() > seen.get(seen.size() - 1));
+        }
+        seen.add(entity.getId());
+      }
+      afterId = page.get(page.size() - 1).getId();
+      page = service.findPage(afterId, 100, SortOrder.ASCENDING);
+    }
+    assertEquals(ROWS, seen.size());
+  }
+
+  @Test
+  public void findPageOnSortPropertyUsesIdAsTieBreaker() {
+    insertRows(ROWS);
+
+    int count = 0;
+    TestEntity last = null;
+    List<TestEntity> page = service.findPage("score", null, null, 75, SortOrder.DESCENDING);
+    while (!page.isEmpty()) {
+      for (TestEntity entity : page) {
+        if (last != null) {
+          assertTrue("scores should be descending", entity.getScore() <= last.getScore());
+          if (entity.getScore() == last.getScore()) {
+            assertTrue("ids should be descending within equal scores", entity.getId() < last.getId());
+          }
+        }
+        last = entity;
+        count++;
+      }
+      page = service.findPage("score", last.getScore(), last.getId(), 75, SortOrder.DESCENDING);
+    }
+    assertEquals(ROWS, count);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void findPageRejectsCursorWithoutSortValue() {
+    service.findPage("score", null, 1L, 10, SortOrder.ASCENDING);
+  }
+
+  @Test
+  public void costOfPageDoesNotGrowWithDepth() {
+    insertRows(ROWS);
+    List<TestEntity> all = service.findPage(null, ROWS, SortOrder.ASCENDING);
+
+    Statistics statistics = sessionFactory.getStatistics();
+    for (int n : new int[] {0, ROWS / 2, ROWS - 11}) {
+      sessionFactory.getCurrentSession().clear();
+      statistics.clear();
+      Long afterId = all.get(n).getId();
+      List<TestEntity> page = service.findPage(afterId, 10, SortOrder.ASCENDING);
+      assertEquals(10, page.size());
+      assertEquals("one query per page, independent of the page number", 1, statistics.getPrepareStatementCount());
+      assertEquals("only the rows of the page itself are read", 10, statistics.getEntityLoadCount());
+    }
+  }
+
+  @Test
+  public void scrollAllKeepsSessionBounded() {
+    insertRowsWithJdbc(SCROLL_ROWS);
+    service.setScrollChunkSize(500);
+
+    final long[] maxEntitiesInSession = new long[1];
+    long processed = service.scrollAll(new DomainObjectCallback<TestEntity>() {
+      @Override
+      public void process(TestEntity domainObject) {
+        int inSession = sessionFactory.getCurrentSession().getStatistics().getEntityCount();
+        maxEntitiesInSession[0] = Math.max(maxEntitiesInSession[0], inSession);
+      }
+    });
+
+    assertEquals(SCROLL_ROWS, processed);
+    assertTrue("session should never hold more than one chunk, but held " + maxEntitiesInSession[0],
+            maxEntitiesInSession[0] <= 500);
+    assertEquals(0, sessionFactory.getCurrentSession().getStatistics().getEntityCount());
+  }
+
+  @Test
+  public void scrollFetchSizeStreamsOnMySQL() {
+    assertEquals(Integer.MIN_VALUE,
+            GenericServiceHibernateImpl.defaultFetchSize("MySQL", "jdbc:mysql://localhost/coin", 500));
+    assertEquals(500, GenericServiceHibernateImpl.defaultFetchSize("MySQL",
+            "jdbc:mysql://localhost/coin?useCursorFetch=true", 500));
+    assertEquals(500, GenericServiceHibernateImpl.defaultFetchSize("HSQL Database Engine",
+            "jdbc:hsqldb:mem:generic-service-test", 500));
+  }
+
+  @Test
+  public void bulkSaveOrUpdateKeepsSessionEmpty() {
+    List<TestEntity> entities = newEntities(ROWS);
+    int written = service.bulkSaveOrUpdate(entities);
+
+    assertEquals(ROWS, written);
+    assertEquals(0, sessionFactory.getCurrentSession().getStatistics().getEntityCount());
+    assertEquals(ROWS, service.getCount());
+  }
+
+  @Test
+  public void bulkSaveOrUpdateFlushesEveryBatch() {
+    service.setBatchSize(50);
+    Statistics statistics = sessionFactory.getStatistics();
+    statistics.clear();
+
+    service.bulkSaveOrUpdate(newEntities(ROWS + 25));
+
+    assertEquals("one flush per full batch plus one for the rest", ROWS / 50 + 1, statistics.getFlushCount());
+    assertEquals(ROWS + 25, statistics.getEntityInsertCount());
+  }
+
+  @Test
+  public void bulkSaveOrUpdateKeepsOtherEntitiesAttached() {
+    insertRows(1);
+    TestEntity other = service.findPage(null, 1, SortOrder.ASCENDING).get(0);
+    other.setName("changed before the bulk write");
+
+    service.bulkSaveOrUpdate(newEntities(120));
+
+    assertTrue("unrelated entities stay in the session", sessionFactory.getCurrentSession().contains(other));
+    assertEquals(1, sessionFactory.getCurrentSession().getStatistics().getEntityCount());
+    other.setName("changed after the bulk write");
+    sessionFactory.getCurrentSession().flush();
+    sessionFactory.getCurrentSession().clear();
+    assertEquals("changes of attached entities are still written", 1,
+            service.findByExample(new TestEntity("changed after the bulk write", other.getScore())).size());
+  }
+
+  @Test
+  public void deleteWhere() {
+    insertRows(100);
+
+    assertEquals(10, service.deleteWhere("score = ?", 3));
+    assertEquals(90, service.getCount());
+    assertEquals(0, service.deleteWhere("score = ?", 3));
+  }
+
+  @Test
+  public void updateWhere() {
+    insertRows(100);
+
+    Map<String, Object> assignments = new HashMap<String, Object>();
+    assignments.put("name", "updated");
+    assignments.put("score", 42);
+    assertEquals(20, service.updateWhere(assignments, "score >= ? and score < ?", 1, 3));
+
+    TestEntity example = new TestEntity("updated", 42);
+    assertEquals(20, service.findByExample(example).size());
+  }
+
+  @Test
+  public void deleteByIdsInChunks() {
+    insertRows(100);
+    List<Long> ids = new ArrayList<Long>();
+    for (TestEntity entity : service.findPage(null, 23, SortOrder.ASCENDING)) {
+      ids.add(entity.getId());
+    }
+
+    service.setInClauseChunkSize(5);
+    assertEquals(23, service.deleteByIds(ids));
+    assertEquals(77, service.getCount());
+  }
+
+  @Test
+  public void findByIdsUsesSessionAndChunkedQueries() {
+    insertRows(100);
+    List<TestEntity> all = service.findPage(null, 100, SortOrder.ASCENDING);
+    sessionFactory.getCurrentSession().clear();
+
+    // put the first 10 in the session
+    service.findPage(null, 10, SortOrder.ASCENDING);
+
+    List<Long> ids = new ArrayList<Long>();
+    for (TestEntity entity : all.subList(0, 50)) {
+      ids.add(entity.getId());
+    }
+    ids.add(-1L);
+    Collections.reverse(ids);
+
+    Statistics statistics = sessionFactory.getStatistics();
+    statistics.clear();
+    service.setInClauseChunkSize(20);
+    List<TestEntity> result = service.findByIds(ids);
+
+    assertEquals("unknown id is skipped", 50, result.size());
+    for (int i = 0; i < result.size(); i++) {
+      assertEquals("input order is kept", ids.get(i + 1), result.get(i).getId());
+    }
+    assertEquals("entities in the session are not loaded again", 40, statistics.getEntityLoadCount());
+    assertEquals("41 unknown ids in chunks of 20", 3, statistics.getPrepareStatementCount());
+  }
+
+  @Test
+  public void findByIdsLooksUpSessionEntitiesByKey() {
+    insertRows(ROWS);
+    List<TestEntity> all = service.findPage(null, ROWS, SortOrder.ASCENDING);
+    List<Long> ids = new ArrayList<Long>();
+    ids.add(all.get(3).getId());
+    ids.add(all.get(3).getId());
+    ids.add(null);
+
+    Statistics statistics = sessionFactory.getStatistics();
+    statistics.clear();
+    List<TestEntity> result = service.findByIds(ids);
+
+    assertEquals("duplicates are kept, null is skipped", 2, result.size());
+    assertTrue(result.get(0) == all.get(3));
+    assertEquals("all ids are in the session", 0, statistics.getPrepareStatementCount());
+  }
+
+  @Test
+  public void findProperties() {
+    insertRows(100);
+
+    List<Object[]> rows = service.findProperties("name", "score");
+    assertEquals(100, rows.size());
+    assertEquals(2, rows.get(0).length);
+
+    List<Object[]> names = service.findProperties("name");
+    assertEquals(1, names.get(0).length);
+    assertTrue(names.get(0)[0] instanceof String);
+
+    List<NameAndScore> dtos = service.findProperties(NameAndScore.class, "name", "score");
+    assertEquals(100, dtos.size());
+    assertEquals("no entities are loaded", 0, sessionFactory.getCurrentSession().getStatistics().getEntityCount());
+  }
+
+  @Test
+  public void findPropertiesLoadsNoEntities() {
+    insertRowsWithJdbc(ROWS);
+    Statistics statistics = sessionFactory.getStatistics();
+
+    statistics.clear();
+    assertEquals(ROWS, service.findAll().size());
+    assertEquals(ROWS, statistics.getEntityLoadCount());
+    sessionFactory.getCurrentSession().clear();
+
+    statistics.clear();
+    assertEquals(ROWS, service.findProperties(NameAndScore.class, "name", "score").size());
+    assertEquals("one query", 1, statistics.getPrepareStatementCount());
+    assertEquals("no entities are hydrated", 0, statistics.getEntityLoadCount());
+    assertEquals(0, sessionFactory.getCurrentSession().getStatistics().getEntityCount());
+  }
+
+  public static class NameAndScore {
+    private String name;
+    private int score;
+
+    public String getName() {
+      return name;
+    }
+
+    public void setName(String name) {
+      this.name = name;
+    }
+
+    public int getScore() {
+      return score;
+    }
+
+    public void setScore(int score) {
+      this.score = score;
+    }
+  }
+
+  @Test
+  public void findAllLoadsReadOnly() {
+    insertRows(10);
+
+    List<TestEntity> all = service.findAll();
+    for (TestEntity entity : all) {
+      assertTrue(sessionFactory.getCurrentSession().isReadOnly(entity));
+    }
+    TestEntity changed = all.get(0);
+    changed.setName("not flushed");
+    TestEntity saved = all.get(1);
+    saved.setName("saved");
+    service.saveOrUpdate(saved);
+    sessionFactory.getCurrentSession().flush();
+    sessionFactory.getCurrentSession().clear();
+
+    assertEquals("read-only entities are not dirty checked", 0,
+            service.findByExample(new TestEntity("not flushed", changed.getScore())).size());
+    assertEquals("read-only entities passed to saveOrUpdate are written", 1,
+            service.findByExample(new TestEntity("saved", saved.getScore())).size());
+  }
+
+  @Test
+  public void findByIdLoadsReadOnly() {
+    insertRows(1);
+    Long id = service.findPage(null, 1, SortOrder.ASCENDING).get(0).getId();
+    sessionFactory.getCurrentSession().clear();
+
+    TestEntity entity = service.findById(id);
+    entity.getName();
+    assertTrue(sessionFactory.getCurrentSession().isReadOnly(entity));
+    assertFalse(sessionFactory.getCurrentSession().isDefaultReadOnly());
+
+    service.setReadOnlyQueries(false);
+    sessionFactory.getCurrentSession().clear();
+    assertFalse(sessionFactory.getCurrentSession().isReadOnly(service.findById(id)));
+  }
+
+  @Test
+  public void countCacheIsInvalidatedByWrites() {
+    service.setCountCacheMillis(60000);
+    insertRows(10);
+    long hits = service.getCountCacheHits();
+
+    assertEquals(10, service.getCount());
+    assertEquals(10, service.getCount());
+    assertEquals(hits + 1, service.getCountCacheHits());
+
+    service.saveOrUpdate(new TestEntity("new", 1));
+    assertEquals(11, service.getCount());
+    service.deleteWhere("name = ?", "new");
+    assertEquals(10, service.getCount());
+    assertEquals(hits + 1, service.getCountCacheHits());
+  }
+
+  @Test
+  public void writesRegisterOneSynchronizationPerTransaction() {
+    TransactionSynchronizationManager.initSynchronization();
+    try {
+      service.saveOrUpdate(new TestEntity("uncached", 1));
+      assertEquals("no synchronization without caching", 0,
+              TransactionSynchronizationManager.getSynchronizations().size());
+
+      service.setCountCacheMillis(60000);
+      service.saveOrUpdate(new TestEntity("first", 1));
+      service.saveOrUpdate(new TestEntity("second", 2));
+      service.deleteWhere("name = ?", "first");
+      assertEquals(1, TransactionSynchronizationManager.getSynchronizations().size());
+    } finally {
+      TransactionSynchronizationManager.clearSynchronization();
+      for (Object key : TransactionSynchronizationManager.getResourceMap().keySet()) {
+        if (key instanceof EntityCountCache) {
+          TransactionSynchronizationManager.unbindResource(key);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void countCacheIsNotSharedBetweenSessionFactories() {
+    service.setCountCacheMillis(60000);
+    insertRows(10);
+    assertEquals(10, service.getCount());
+
+    SessionFactory otherSessionFactory = buildSessionFactory(false, "jdbc:hsqldb:mem:generic-service-other");
+    try {
+      GenericServiceHibernateImpl<TestEntity> otherService = new GenericServiceHibernateImpl<TestEntity>(
+              TestEntity.class);
+      ReflectionTestUtils.setField(otherService, "portalSessionFactory", otherSessionFactory);
+      otherService.setCountCacheMillis(60000);
+      otherSessionFactory.getCurrentSession().beginTransaction();
+      assertEquals("the count of the other database is not taken from the cache", 0, otherService.getCount());
+      otherSessionFactory.getCurrentSession().getTransaction().rollback();
+    } finally {
+      otherSessionFactory.close();
+    }
+  }
+
+  @Test
+  public void approximateCountFallsBackToExactCount() {
+    insertRows(10);
+    Statistics statistics = sessionFactory.getStatistics();
+    statistics.clear();
+    assertEquals("HSQLDB has no table statistics", 10, service.getApproximateCount());
+    assertEquals("the MySQL statistics are not queried", 1, statistics.getQueryExecutionCount());
+  }
+
+  @Test
+  public void secondLevelAndQueryCache() {
+    useSecondLevelCache();
+    service.setCacheable(true);
+    insertRowsAndCommit(10);
+
+    Long id = service.findAll().get(0).getId();
+    sessionFactory.getCurrentSession().clear();
+    assertEquals(10, service.findAll().size());
+    assertTrue("second findAll is answered by the query cache", service.getQueryCacheHitRatio() > 0);
+
+    sessionFactory.getCurrentSession().clear();
+    service.findById(id).getName();
+    assertTrue("findById is answered by the second-level cache", service.getEntityCacheHitRatio() > 0);
+  }
+
+  @Test
+  public void resultCache() {
+    useSecondLevelCache();
+    service.setResultCacheSize(10);
+    service.setResultCacheMillis(60000);
+    insertRowsAndCommit(100);
+
+    assertEquals(10, service.findByExample(new TestEntity(null, 3)).size());
+    assertEquals(10, service.findByExample(new TestEntity(null, 3)).size());
+    assertEquals(1, service.getResultCacheHits());
+
+    assertEquals(10, service.findByCriteria(Restrictions.eq("score", 3)).size());
+    assertEquals(10, service.findByCriteria(Restrictions.eq("score", 3)).size());
+    assertEquals(2, service.getResultCacheHits());
+    assertEquals("other value is another query", 10, service.findByCriteria(Restrictions.eq("score", 4)).size());
+    assertEquals(2, service.getResultCacheHits());
+    assertEquals(1, service.findByCriteria(Restrictions.eq("name", "NAME3").ignoreCase()).size());
+    assertEquals("ignoreCase is part of the key", 0, service.findByCriteria(Restrictions.eq("name", "NAME3")).size());
+
+    service.saveOrUpdate(new TestEntity("new", 3));
+    assertEquals("writes invalidate the cache", 11, service.findByExample(new TestEntity(null, 3)).size());
+  }
+
+  @Test
+  public void resultCacheHitIssuesNoStatements() {
+    useSecondLevelCache();
+    service.setResultCacheSize(10);
+    service.setResultCacheMillis(60000);
+    insertRowsAndCommit(100);
+
+    assertEquals(10, service.findByCriteria(Restrictions.eq("score", 3)).size());
+    sessionFactory.getCurrentSession().clear();
+    Statistics statistics = sessionFactory.getStatistics();
+    statistics.clear();
+
+    assertEquals(10, service.findByCriteria(Restrictions.eq("score", 3)).size());
+    assertEquals(1, service.getResultCacheHits());
+    assertEquals("the hit is served from the second-level cache", 0, statistics.getPrepareStatementCount());
+  }
+
+  @Test
+  public void resultCacheIsNotUsedWithoutSecondLevelCache() {
+    service.setResultCacheSize(10);
+    service.setResultCacheMillis(60000);
+    insertRows(100);
+
+    assertEquals(10, service.findByCriteria(Restrictions.eq("score", 3)).size());
+    assertEquals(10, service.findByCriteria(Restrictions.eq("score", 3)).size());
+    assertEquals("loading the ids would cost more than the query", 0, service.getResultCacheHits());
+  }
+
+  @Test
+  public void resultCacheKeepsMilliseconds() {
+    useSecondLevelCache();
+    service.setResultCacheSize(10);
+    service.setResultCacheMillis(60000);
+    long second = 1360000000000L;
+    TestEntity entity = new TestEntity("created", 1);
+    entity.setCreated(new Date(second + 500));
+    service.saveOrUpdate(entity);
+    sessionFactory.getCurrentSession().getTransaction().commit();
+    sessionFactory.getCurrentSession().beginTransaction();
+
+    assertEquals(1, service.findByCriteria(Restrictions.gt("created", new Date(second + 100))).size());
+    assertEquals("the same second with other milliseconds is another query", 0,
+            service.findByCriteria(Restrictions.gt("created", new Date(second + 900))).size());
+    assertEquals(0, service.getResultCacheHits());
+  }
+
+  private void useSecondLevelCache() {
+    sessionFactory.getCurrentSession().getTransaction().rollback();
+    sessionFactory.close();
+    sessionFactory = buildSessionFactory(true);
+    ReflectionTestUtils.setField(service, "portalSessionFactory", sessionFactory);
+    sessionFactory.getCurrentSession().beginTransaction();
+  }
+
+  /*
+   * Committed rows end up in the second-level cache when they are loaded
+   */
+  private void insertRowsAndCommit(int rows) {
+    insertRows(rows);
+    sessionFactory.getCurrentSession().getTransaction().commit();
+    sessionFactory.getCurrentSession().beginTransaction();
+  }
+
+  private List<TestEntity> newEntities(int rows) {
+    List<TestEntity> entities = new ArrayList<TestEntity>(rows);
+    for (int i = 0; i < rows; i++) {
+      entities.add(new TestEntity("name" + i, i % 10));
+    }
+    return entities;
+  }
+
+  private void insertRowsWithJdbc(final int rows) {
+    sessionFactory.getCurrentSession().doWork(new Work() {
+      @Override
+      public void execute(Connection connection) throws SQLException {
+        PreparedStatement statement = connection.prepareStatement("insert into TestEntity (name, score) values (?, ?)");
+        try {
+          for (int i = 0; i < rows; i++) {
+            statement.setString(1, "n" + i);
+            statement.setInt(2, i % 10);
+            statement.addBatch();
+            if (i % 1000 == 999) {
+              statement.executeBatch();
+            }
+          }
+          statement.executeBatch();
+        } finally {
+          statement.close();
+        }
+      }
+    });
+  }
+
+  private void insertRows(int rows) {
+    for (int i = 0; i < rows; i++) {
+      service.saveOrUpdate(new TestEntity("name" + i, i % 10));
+    }
+    sessionFactory.getCurrentSession().flush();
+    sessionFactory.getCurrentSession().clear();
+  }
+}
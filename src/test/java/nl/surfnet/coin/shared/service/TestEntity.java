@@ -0,0 +1,72 @@
+/*
+ * Copyright 2013 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.coin.shared.service;
+
+import java.util.Date;
+
+import javax.persistence.Entity;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+import nl.surfnet.coin.shared.domain.DomainObject;
+
+/**
+ * Minimal entity used to test {@link GenericServiceHibernateImpl}
+ */
+@SuppressWarnings("serial")
+@Entity
+public class TestEntity extends DomainObject {
+
+  private String name;
+
+  private int score;
+
+  @Temporal(TemporalType.TIMESTAMP)
+  private Date created;
+
+  public TestEntity() {
+  }
+
+  public TestEntity(String name, int score) {
+    this.name = name;
+    this.score = score;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public void setName(String name) {
+    this.name = name;
+  }
+
+  public int getScore() {
+    return score;
+  }
+
+  public void setScore(int score) {
+    this.score = score;
+  }
+
+  public Date getCreated() {
+    return created;
+  }
+
+  public void setCreated(Date created) {
+    this.created = created;
+  }
+}
@@ -1 +1,3 @@
-drop table api_call_log ;
\ No newline at end of file
+drop table api_call_log ;
+drop table api_call_log_archive ;
+drop table api_call_log_rollup ;
\ No newline at end of file
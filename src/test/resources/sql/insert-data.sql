@@ -1,15 +1,38 @@
 create table api_call_log (
   id bigint generated by default as identity (start with 1),
   log_timestamp timestamp default null,
-  user_id varchar(1000) default null,
-  spentity_id varchar(1000) default null,
-  ip_address varchar(1000) default null,
-  api_version varchar(1000) default null,
+  user_id varchar(255) default null,
+  spentity_id varchar(255) default null,
+  ip_address varchar(45) default null,
+  api_version varchar(32) default null,
   resource_url varchar(1000) default null,
-  consumer_key varchar(1024) default null,
+  consumer_key varchar(255) default null,
   primary key (id)
 );
 
+create table api_call_log_archive (
+  id bigint not null,
+  log_timestamp timestamp default null,
+  user_id varchar(255) default null,
+  spentity_id varchar(255) default null,
+  ip_address varchar(45) default null,
+  api_version varchar(32) default null,
+  resource_url varchar(1000) default null,
+  consumer_key varchar(255) default null,
+  call_count int default 1 not null,
+  primary key (id)
+);
+
+create table api_call_log_rollup (
+  granularity varchar(6) not null,
+  bucket_start timestamp not null,
+  spentity_id varchar(255) not null,
+  consumer_key varchar(255) not null,
+  api_version varchar(255) not null,
+  call_count bigint not null,
+  primary key (granularity, bucket_start, spentity_id, consumer_key, api_version)
+);
+
 INSERT INTO api_call_log (user_id, spentity_id, ip_address, api_version, resource_url, consumer_key)
 VALUES
   ('test_user', 'testsp1', '127.0.0.1', 'shindig', 'http://localhost/test/person', 'consumer_key');